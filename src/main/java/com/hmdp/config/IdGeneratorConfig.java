@@ -0,0 +1,20 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+@Configuration
+public class IdGeneratorConfig {
+    @Bean
+    @Primary
+    public IdGenerator idGenerator(@Value("${hmdp.id-worker.type:redis}") String type,
+                                   RedisIdWorker redisIdWorker, SnowflakeIdWorker snowflakeIdWorker) {
+        // the snowflake worker leases its worker id lazily, so the unused one costs nothing
+        return "snowflake".equals(type) ? snowflakeIdWorker : redisIdWorker;
+    }
+}
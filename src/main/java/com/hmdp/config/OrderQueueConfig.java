@@ -0,0 +1,37 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.JournalOrderQueue;
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.OrderStreamRecovery;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisStreamOrderQueue;
+import com.hmdp.utils.RingBufferOrderQueue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.IOException;
+
+@Configuration
+public class OrderQueueConfig {
+    @Bean(destroyMethod = "close")
+    public OrderQueue orderQueue(@Value("${hmdp.seckill.queue.type:redis}") String type,
+                                 @Value("${hmdp.seckill.queue.ring-capacity:65536}") int ringCapacity,
+                                 @Value("${hmdp.seckill.queue.journal-dir:./data/order-journal}") String journalDir,
+                                 @Value("${hmdp.seckill.queue.journal-segment-records:1048576}") long segmentRecords,
+                                 @Value("${hmdp.seckill.queue.journal-fsync:false}") boolean fsync,
+                                 StringRedisTemplate stringRedisTemplate,
+                                 OrderStreamRecovery orderStreamRecovery) throws IOException {
+        switch (type) {
+            case "ring":
+                // orders that can not go back into a full ring keep their stock in the dead letter stream
+                return new RingBufferOrderQueue(ringCapacity, orders -> orderStreamRecovery.deadLetter(orders, "ring"));
+            case "journal":
+                return new JournalOrderQueue(journalDir, segmentRecords, fsync);
+            default:
+                return new RedisStreamOrderQueue(stringRedisTemplate,
+                        RedisConstants.STREAM_ORDERS_KEY, RedisConstants.STREAM_ORDERS_GROUP);
+        }
+    }
+}
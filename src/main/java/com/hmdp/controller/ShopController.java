@@ -6,6 +6,8 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.NearCache;
+import com.hmdp.utils.ShopBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
@@ -25,6 +27,10 @@ public class ShopController {
 
     @Resource
     public IShopService shopService;
+    @Resource
+    private NearCache nearCache;
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
 
     /**
      * 根据id查询商铺信息
@@ -36,6 +42,24 @@ public class ShopController {
         return shopService.queryById(id);
     }
 
+    /**
+     * 查询本节点近端缓存的命中率等统计
+     * @return 统计数据
+     */
+    @GetMapping("/cache/stats")
+    public Result queryNearCacheStats() {
+        return Result.ok(nearCache.stats());
+    }
+
+    /**
+     * 查询商铺布隆过滤器的拦截统计
+     * @return 统计数据
+     */
+    @GetMapping("/bloom/stats")
+    public Result queryBloomFilterStats() {
+        return Result.ok(shopBloomFilter.stats());
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -45,6 +69,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器，否则新店铺会被拦截
+        shopBloomFilter.add(shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
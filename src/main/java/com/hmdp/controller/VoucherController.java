@@ -2,8 +2,11 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillAdmissionDTO;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillReconciler;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -22,6 +25,10 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private SeckillReconciler seckillReconciler;
 
     /**
      * 新增普通券
@@ -45,6 +52,44 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 设置秒杀券的准入容量，仅管理员
+     * @param voucherId 优惠券id
+     * @param admission 每个窗口的许可数和窗口大小，必须大于0
+     * @return 无
+     */
+    @PutMapping("seckill/{id}/admission")
+    public Result configureAdmission(@PathVariable("id") Long voucherId, @RequestBody SeckillAdmissionDTO admission) {
+        if (!seckillAdmission.configure(voucherId, admission)) {
+            return Result.fail("许可数和窗口大小必须大于0");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询秒杀券的准入容量和本节点的放行、拒绝次数，仅管理员
+     * @param voucherId 优惠券id
+     * @return 准入统计
+     */
+    @GetMapping("seckill/{id}/admission")
+    public Result queryAdmission(@PathVariable("id") Long voucherId) {
+        SeckillAdmissionDTO stats = seckillAdmission.stats(voucherId);
+        if (stats == null) {
+            return Result.fail("秒杀券不存在");
+        }
+        return Result.ok(stats);
+    }
+
+    /**
+     * 查询秒杀券最近一次redis与数据库的对账结果，仅管理员
+     * @param voucherId 优惠券id
+     * @return 对账结果
+     */
+    @GetMapping("seckill/{id}/reconcile")
+    public Result queryReconcile(@PathVariable("id") Long voucherId) {
+        return Result.ok(seckillReconciler.lastReport(voucherId));
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -2,9 +2,13 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillBatchDTO;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillReservationWheel;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -24,9 +28,36 @@ public class VoucherOrderController {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillReservationWheel seckillReservationWheel;
 
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.secKillVoucher(voucherId);
     }
+
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody SeckillBatchDTO seckillBatch) {
+        return voucherOrderService.secKillVouchers(seckillBatch);
+    }
+
+    @PostMapping("{orderId}/pay")
+    public Result payOrder(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.payOrder(orderId);
+    }
+
+    @GetMapping("status/{orderId}")
+    public Result queryOrderStatus(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    @GetMapping("stream/stats")
+    public Result queryOrderStreamStats() {
+        return voucherOrderService.queryOrderStreamStats();
+    }
+
+    @GetMapping("reservation/stats")
+    public Result queryReservationStats() {
+        return Result.ok(seckillReservationWheel.stats());
+    }
 }
@@ -0,0 +1,11 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class SeckillAdmissionDTO {
+    private Long permitsPerWindow;
+    private Long windowMs;
+    private Long admitted;
+    private Long shed;
+}
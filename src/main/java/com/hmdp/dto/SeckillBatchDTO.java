@@ -0,0 +1,12 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class SeckillBatchDTO {
+    private List<Long> voucherIds;
+    // claim all vouchers or none, default true; false claims whatever can be claimed
+    private Boolean allOrNothing;
+}
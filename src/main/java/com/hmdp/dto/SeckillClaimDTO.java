@@ -0,0 +1,15 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SeckillClaimDTO {
+    private Long voucherId;
+    // null if not claimed
+    private Long orderId;
+    private String errorMsg;
+}
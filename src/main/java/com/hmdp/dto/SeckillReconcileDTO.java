@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class SeckillReconcileDTO {
+    private Long voucherId;
+    private LocalDateTime checkTime;
+    private Long redisStock;
+    private Long redisOrders;
+    private Long mysqlStock;
+    private Long mysqlOrders;
+    // redis stock + orders - (mysql stock + orders), 0 when both sides agree
+    private Long drift;
+    private Long missingInRedis;
+    private Long missingInMysql;
+    private Long repaired;
+}
@@ -78,6 +78,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分片数, 为空时使用默认配置
+     */
+    @TableField(exist = false)
+    private Integer stockBuckets;
+
     /**
      * 生效时间
      */
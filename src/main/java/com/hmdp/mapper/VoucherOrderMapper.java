@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * INSERT IGNORE, orders of users who have ordered the voucher are skipped by the unique key (user_id, voucher_id)
+     * @return number of orders inserted
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
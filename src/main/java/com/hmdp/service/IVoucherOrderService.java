@@ -1,9 +1,12 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillBatchDTO;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,6 +19,27 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result secKillVoucher(Long voucherId);
 
-    void CreateVoucherOrder(VoucherOrder voucherId);
+    Result secKillVouchers(SeckillBatchDTO seckillBatch);
+
+    boolean CreateVoucherOrder(VoucherOrder voucherId);
+
+    /**
+     * Insert the orders, grouped by voucher, and take their stock in one transaction.
+     * @return the orders in mysql after the insert, new or delivered before, not those skipped as another order
+     *         of the same user and voucher
+     */
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    Result queryOrderStatus(Long orderId);
+
+    Result payOrder(Long orderId);
+
+    /**
+     * Cancel the orders still reserved (status 1) and give their stock back in mysql.
+     * @return the cancelled orders, their stock is to be given back in redis
+     */
+    List<VoucherOrder> expireReservations(List<Long> orderIds);
+
+    Result queryOrderStreamStats();
 
 }
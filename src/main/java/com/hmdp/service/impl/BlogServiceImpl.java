@@ -2,7 +2,6 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
@@ -15,6 +14,8 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -27,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -46,6 +48,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
 
     @Override
     public Result queryBlogById(Long id) {
@@ -92,17 +98,21 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 2. if not like before
             // 2.1 number of like + 1
             boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            // 2.2 store the user to redis set
+            // 2.2 store the user to redis set, and drop the cached blog with the old number
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
+                hotKeyDetector.invalidate(key);
             }
         } else {
             // 3. if like before
             // 3.1 number of like - 1
             boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
-            // 3.2 remove the user from redis set
+            // 3.2 remove the user from redis set, and drop the cached blog with the old number
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
+                hotKeyDetector.invalidate(key);
             }
         }
         return Result.ok();
@@ -111,6 +121,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Override
     public Result queryBlogLikes(Long id) {
         String key = RedisConstants.BLOG_LIKED_KEY + id;
+        // a hot blog is served by the replica of this node
+        if (hotKeyDetector.record(key)) {
+            Object replica = hotKeyDetector.getReplica(key);
+            if (replica != null) {
+                return Result.ok(replica);
+            }
+        }
         // query top5 likes user: zrange key 0 4
         Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
         if (top5 == null || top5.isEmpty()) {
@@ -119,11 +136,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // extract user id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
 
-        // query user by id: where id in () order by field (id, )
-        String idString = StrUtil.join(",", ids);
-        List<User> users = userService.query().in("id", ids).last("ORDER BY FIELD(id, " + idString + ")").list();
-        // change user to userDto
-        List<UserDTO> usersDTO = users.stream().map(user -> BeanUtil.copyProperties(user, UserDTO.class)).collect(Collectors.toList());
+        // query user by id, from cache in one round trip, misses from database in one query
+        List<UserDTO> usersDTO = cacheClient.queryByIds(RedisConstants.CACHE_USER_KEY, ids, RedisConstants.CACHE_USER_TTL,
+                TimeUnit.MINUTES, UserDTO.class, UserDTO::getId, userIds -> userService.listByIds(userIds).stream()
+                        // change user to userDto
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class)).collect(Collectors.toList()));
+        hotKeyDetector.putReplica(key, usersDTO);
         return Result.ok(usersDTO);
     }
 
@@ -179,9 +197,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
         }
 
-        // 5. query blog by id
-        String blogIdStr = StrUtil.join(",", blogIds);
-        List<Blog> blogs = query().in("id", blogIds).last("ORDER BY FIELD(id," + blogIdStr + ")").list();
+        // 5. query blog by id, from cache in one round trip, misses from database in one query
+        List<Blog> blogs = cacheClient.queryByIds(RedisConstants.CACHE_BLOG_KEY, blogIds, RedisConstants.CACHE_BLOG_TTL,
+                TimeUnit.MINUTES, Blog.class, Blog::getId, this::listByIds);
 
         for (Blog blog : blogs) {
             // query author
@@ -206,6 +224,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         Long userId = user.getId();
         String key = RedisConstants.BLOG_LIKED_KEY + blog.getId();
+        // the score is per user, count the access for detection only
+        hotKeyDetector.record(key);
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         blog.setIsLike(score != null);
     }
@@ -1,7 +1,6 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -11,8 +10,10 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
@@ -47,11 +48,22 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
 
     @Override
     public Result queryById(Long id) {
         // TODO: if change function between (1, 2) and (3), clear the information in cache. And function 3 need initial data in cache
 
+        // 0. the id is surely not a shop, answer without redis and database
+        if (!shopBloomFilter.mightContain(id)) {
+            return Result.fail("Shop didn't find");
+        }
+
         // 1. 缓存穿透解决方案
 //        Shop shop = cacheClient.queryByID_passThroughSolution(RedisConstants.CACHE_SHOP_KEY, id, RedisConstants.CACHE_SHOP_TTL,
 //                TimeUnit.MINUTES, Shop.class, shopID -> getById(shopID));
@@ -81,8 +93,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1. update sql database
         updateById(shop);
-        // 2. delete cache on redis
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 2. delete cache on redis and the near cache of all nodes
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
 
         return Result.ok();
     }
@@ -105,6 +117,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         // 3. query redis: sort and page, result: shopId, distance
         String key = RedisConstants.SHOP_GEO_KEY + typeId;
+        // the search is per position, count the access for detection only
+        hotKeyDetector.record(key);
         GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo()
                 .search(
                         key,
@@ -133,9 +147,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             distanceMap.put(shopIdStr, distance);
         });
 
-        // 5. query shop by id
-        String idsStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD( id, " + idsStr + ")").list();
+        // 5. query shop by id, from cache in one round trip, misses from database in one query
+        List<Shop> shops = cacheClient.queryByIds(RedisConstants.CACHE_SHOP_KEY, ids, RedisConstants.CACHE_SHOP_TTL,
+                TimeUnit.MINUTES, Shop.class, Shop::getId, this::listByIds);
 
         for (Shop shop : shops) {
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
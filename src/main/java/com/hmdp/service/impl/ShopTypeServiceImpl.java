@@ -1,7 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -9,9 +7,9 @@ import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
@@ -30,17 +28,16 @@ import java.util.concurrent.TimeUnit;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     @Override
     public Result queryAll() {
         // 1. query shop types cache from redis
-        String typesJson = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_TYPE_KEY);
+        List<ShopType> cachedTypes = cacheClient.getList(RedisConstants.CACHE_SHOP_TYPE_KEY, ShopType.class);
         // 2. check if exist
-        if (StrUtil.isNotBlank(typesJson)) {
+        if (cachedTypes != null && !cachedTypes.isEmpty()) {
             // 3. if shop exist, return
-            List<ShopType> shopTypes = JSONUtil.toList(typesJson, ShopType.class);
-            return Result.ok(shopTypes);
+            return Result.ok(cachedTypes);
         }
 
         // 4. else, query from database
@@ -54,8 +51,7 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
         }
 
         // 6. else, save shop into redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_TYPE_KEY, JSONUtil.toJsonStr(shopTypes));
-        stringRedisTemplate.expire(RedisConstants.CACHE_SHOP_TYPE_KEY, RedisConstants.CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        cacheClient.set(RedisConstants.CACHE_SHOP_TYPE_KEY, shopTypes, RedisConstants.CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
 
         // 7. return
         return Result.ok(shopTypes);
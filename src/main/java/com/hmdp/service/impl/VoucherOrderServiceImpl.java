@@ -1,39 +1,59 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.dto.SeckillBatchDTO;
+import com.hmdp.dto.SeckillClaimDTO;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.OrderPipelineMetrics;
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.OrderStreamRecovery;
+import com.hmdp.utils.QueuedOrder;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.RedisStreamOrderQueue;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillMeta;
+import com.hmdp.utils.SeckillMetaCache;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -50,293 +70,625 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
+    private OrderStreamRecovery orderStreamRecovery;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private SeckillMetaCache seckillMetaCache;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private OrderPipelineMetrics orderPipelineMetrics;
+    @Resource
+    private OrderQueue orderQueue;
 
     private static final String ORDER_ID_PREFIX = "order:";
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT;
+
+    // indexed by the result of seckill.lua and seckill_batch.lua
+    private static final String[] SECKILL_FAIL_MESSAGES = {
+            null, "out of stock", "can only order once", "it is not start", "It is already end",
+            "another voucher of the bundle can not be claimed", "voucher not found"
+    };
+
+    private static final DefaultRedisScript<Long> STEAL_SCRIPT;
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_BATCH_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BATCH_SCRIPT.setLocation(new ClassPathResource("seckill_batch.lua"));
+        SECKILL_BATCH_SCRIPT.setResultType(List.class);
+        STEAL_SCRIPT = new DefaultRedisScript<>();
+        STEAL_SCRIPT.setLocation(new ClassPathResource("steal.lua"));
+        STEAL_SCRIPT.setResultType(Long.class);
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
     }
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Value("${hmdp.seckill.consumer-count:4}")
+    private int consumerCount;
+    @Value("${hmdp.seckill.batch-size:50}")
+    private int batchSize;
+    @Value("${hmdp.seckill.reservation.timeout-seconds:900}")
+    private long reserveSeconds;
+    @Value("${hmdp.seckill.steal-batch:32}")
+    private long stealBatch;
+    @Value("${hmdp.seckill.drain-timeout-ms:10000}")
+    private long drainTimeoutMs;
+    @Value("${hmdp.seckill.backpressure.latency-ms:500}")
+    private long backpressureLatencyMs;
+    @Value("${hmdp.seckill.backpressure.pause-ms:1000}")
+    private long backpressurePauseMs;
+    @Value("${hmdp.seckill.trim.max-age-ms:86400000}")
+    private long trimMaxAgeMs;
+    @Value("${hmdp.seckill.trim.max-len:1000000}")
+    private long trimMaxLen;
+    @Value("${hmdp.seckill.trim.max-scan:10000}")
+    private long trimMaxScan;
+    @Value("${server.port:8081}")
+    private int serverPort;
+
+    // consumer names must be unique per worker and per node, otherwise two nodes share one pending list,
+    // and stable across restarts, so the consumers of the group do not grow with every deploy
+    private String consumerPrefix;
+
+    private ExecutorService seckillOrderExecutor;
+    // consumers finish the batch in hand and stop when false
+    private volatile boolean running;
+    // moving average of the time to persist a batch, consumers slow down when mysql is slow
+    private volatile double batchLatencyMs;
+    private final AtomicLong backpressurePauses = new AtomicLong();
+    private final AtomicLong trimmed = new AtomicLong();
+    // consumers on any node may run before a seckill request arrives there, so inject the proxy instead of
+    // taking it from AopContext inside secKillVoucher
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        running = true;
+        consumerPrefix = "c-" + hostName() + "-" + serverPort + "-";
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerPrefix + i));
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            // a random name is still unique, its consumers are removed once idle
+            log.warn("unknown host name, order consumers get a random name: ", e);
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        // stop reading, let the consumers finish the batch in hand, anything unfinished is delivered again
+        running = false;
+        seckillOrderExecutor.shutdown();
+        if (!seckillOrderExecutor.awaitTermination(drainTimeoutMs, TimeUnit.MILLISECONDS)) {
+            log.warn("order consumers not drained in {} ms", drainTimeoutMs);
+            seckillOrderExecutor.shutdownNow();
+        }
     }
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
 
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    // 1. get order information from MessageQueue
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
+                    // 0. mysql is slow, leave the orders in the queue for a while
+                    if (batchLatencyMs > backpressureLatencyMs) {
+                        backpressurePauses.incrementAndGet();
+                        pause(backpressurePauseMs);
+                    }
+                    // 1. get a batch of order information from MessageQueue
+                    List<QueuedOrder> batch = orderQueue.take(consumerName, batchSize, Duration.ofSeconds(2));
                     // 2. check if get order
-                    if (list == null || list.isEmpty()) {
+                    if (batch.isEmpty()) {
                         // 2.1 if not get order, continue
                         continue;
                     }
-
-                    // 2.2 if get order, extract order information
-                    MapRecord<String, Object, Object> entries = list.get(0);
-                    Map<Object, Object> value = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3. create order in sql
-                    handleVoucherOrder(voucherOrder);
-
-                    // 4. ACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", entries.getId());
+                    // 3. create orders in sql, one transaction for the whole batch
+                    handleBatch(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 } catch (Exception e) {
                     log.error("create order fail: ", e);
-                    handlePendingList();
+                    orderPipelineMetrics.error("consume");
+                    // do not spin while redis or mysql is down
+                    pause(backpressurePauseMs);
                 }
             }
+            log.info("order consumer {} stopped", consumerName);
         }
 
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 1. get order information from pendingList
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    // 2. check if get order
-                    if (list == null || list.isEmpty()) {
-                        // 2.1 if not get order, pendingList have no message
-                        break;
-                    }
-
-                    // 2.2 if get order, extract order information
-                    MapRecord<String, Object, Object> entries = list.get(0);
-                    Map<Object, Object> value = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3. create order in sql
-                    handleVoucherOrder(voucherOrder);
+        private void handleBatch(List<QueuedOrder> batch) {
+            // 1. extract order information
+            List<VoucherOrder> voucherOrders = batch.stream().map(QueuedOrder::getVoucherOrder).collect(Collectors.toList());
+            // 2. create orders in sql
+            long begin = System.nanoTime();
+            try {
+                handleVoucherOrders(voucherOrders);
+            } catch (RuntimeException e) {
+                // deliver the batch again, the redis stream leaves it pending for recovery
+                orderQueue.retry(consumerName, batch);
+                throw e;
+            }
+            recordBatchLatency((System.nanoTime() - begin) / 1_000_000.0);
 
-                    // 4. ACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", entries.getId());
-                } catch (Exception e) {
-                    log.error("pendingList create order fail: ", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        e.printStackTrace();
-                    }
-                }
+            // 3. ACK the whole batch at once
+            orderQueue.ack(consumerName, batch);
+            for (QueuedOrder order : batch) {
+                orderPipelineMetrics.committed(order.getEnqueuedAt());
             }
         }
     }
 
+    private void recordBatchLatency(double latencyMs) {
+        // exponential moving average, a lost update between consumers does not matter
+        batchLatencyMs = batchLatencyMs * 0.8 + latencyMs * 0.2;
+    }
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    /*
+     * Claim pending orders idle longer than the threshold, including those left by dead consumers on other nodes,
+     * and handle them one by one. Then remove the consumers of nodes gone for good (renamed hosts), once nothing
+     * is pending on them.
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.recovery.interval-ms:5000}")
+    public void recoverPendingOrders() {
+        if (!orderQueue.enqueuedByScript()) {
+            // orders of a local queue never reach stream.orders
+            return;
+        }
+        try {
+            orderStreamRecovery.recover(consumerPrefix + "recovery", entries -> {
+                handleVoucherOrders(RedisStreamOrderQueue.toVoucherOrders(entries));
+                orderPipelineMetrics.committed(entries.getId().getTimestamp());
+            });
+            orderStreamRecovery.removeIdleConsumers();
+        } catch (Exception e) {
+            log.error("recover pending orders fail: ", e);
+        }
+    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 1. get userId
-        Long userId = voucherOrder.getUserId();
-        // 2. create lock object
-        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + ORDER_ID_PREFIX + userId);
-        // 3. get lock
-        boolean getLock = lock.tryLock();
-        // 4. check if get lock
-        if (!getLock) {
-            // impossible because it has been check in redis
-            log.error("one user can only order once.");
+    /*
+     * Trim acknowledged orders older than the max age or beyond the max length, so the stream does not grow
+     * without bound. Entries still pending or not delivered are never trimmed.
+     * Dead letters are never trimmed, nobody has handled them yet, their number is a gauge to alert on.
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.trim.interval-ms:10000}")
+    public void trimOrderStream() {
+        if (!orderQueue.enqueuedByScript()) {
             return;
         }
         try {
-            // unlock after transaction submitted
-            proxy.CreateVoucherOrder(voucherOrder);
-        } finally {
-            // unlock
-            lock.unlock();
+            Long n = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.emptyList(), RedisConstants.STREAM_ORDERS_KEY,
+                    String.valueOf(trimMaxAgeMs), String.valueOf(trimMaxLen), String.valueOf(trimMaxScan));
+            if (n != null) {
+                trimmed.addAndGet(n);
+            }
+        } catch (Exception e) {
+            log.error("trim order stream fail: ", e);
+        }
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        // answered from redis only, polling clients never reach mysql
+        String status = seckillOrderStatus.query(orderId, UserHolder.getUser().getId());
+        if (status == null) {
+            return Result.fail("order status not found or expired");
+        }
+        return Result.ok(status);
+    }
+
+    @Override
+    public Result queryOrderStreamStats() {
+        Map<String, Object> stats = orderStreamRecovery.stats();
+        stats.put("length", orderQueue.size());
+        stats.put("trimmed", trimmed.get());
+        stats.put("batchLatencyMs", batchLatencyMs);
+        stats.put("backpressurePauses", backpressurePauses.get());
+        return Result.ok(stats);
+    }
+
+    private void handleVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // one transaction per voucher: one multi-row insert and one stock update,
+        // no lock needed because the unique key (user_id, voucher_id) makes the insert idempotent
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            try {
+                List<VoucherOrder> persisted = orderPipelineMetrics.time(OrderPipelineMetrics.STAGE_BATCH,
+                        () -> proxy.createVoucherOrders(entry.getValue()));
+                // an order skipped by INSERT IGNORE is not in mysql, it stays PENDING
+                orderPipelineMetrics.time(OrderPipelineMetrics.STAGE_STATUS, () -> {
+                    seckillOrderStatus.mark(persisted, SeckillOrderStatus.PERSISTED);
+                    return null;
+                });
+            } catch (Exception e) {
+                // the batch of the voucher is rolled back, fall back to one transaction per order,
+                // an exception here leaves the stream batch pending for recovery
+                log.warn("batch create order of voucher {} fail, create one by one: ", entry.getKey(), e);
+                orderPipelineMetrics.error(OrderPipelineMetrics.STAGE_BATCH);
+                for (VoucherOrder voucherOrder : entry.getValue()) {
+                    orderPipelineMetrics.retry("one_by_one");
+                    boolean persisted = proxy.CreateVoucherOrder(voucherOrder);
+                    seckillOrderStatus.mark(voucherOrder.getId(), voucherOrder.getUserId(),
+                            persisted ? SeckillOrderStatus.PERSISTED : SeckillOrderStatus.FAILED);
+                }
+            }
         }
     }
 
     @Override
     public Result secKillVoucher(Long voucherId) {
+        // 0. reject in memory if the voucher is known to be sold out
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("out of stock");
+        }
+        // 0.1 buckets and sale window of the voucher from the local cache, an unknown voucher never reaches redis
+        SeckillMeta meta = seckillMetaCache.get(voucherId);
+        if (meta == null) {
+            return Result.fail(SECKILL_FAIL_MESSAGES[6]);
+        }
+        // 0.2 shed requests beyond the capacity of the voucher before they reach redis
+        if (!seckillAdmission.tryAdmit(voucherId)) {
+            return Result.fail("too many requests, please retry later");
+        }
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId(ORDER_ID_PREFIX);
-        // 1. execute lua script
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(), voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        long orderId = idGenerator.nextId(ORDER_ID_PREFIX);
+        // 1. execute lua script on the bucket of the user
+        int r = claim(meta, userId, orderId);
+        // 1.1 the bucket is out of stock, move stock of a sibling bucket to it and claim again,
+        //     a few times at most since other users race for the moved stock
+        boolean soldOut = r == 1;
+        for (int i = 1; r == 1 && i < meta.getBuckets(); i++) {
+            soldOut = !stealToHome(meta, userId);
+            if (soldOut) {
+                break;
+            }
+            r = claim(meta, userId, orderId);
+        }
         // 2. check if can order
-        int r = result.intValue();
         if (r != 0){
             // 3. result != 0, reject
-            return Result.fail(r == 1?"out of stock":"can only order once");
+            if (soldOut) {
+                // 3.1 every bucket is empty, remember sold out on all nodes, later requests do not need to run the
+                //     script, an unknown voucher (6) is not marked
+                seckillSoldOutRegistry.markSoldOut(voucherId);
+            }
+            return Result.fail(SECKILL_FAIL_MESSAGES[r]);
+        }
+        // 4. hand the order to a local queue, the redis stream has it from the script already
+        if (!orderQueue.enqueuedByScript()) {
+            VoucherOrder voucherOrder = new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(voucherId);
+            if (!orderQueue.offer(voucherOrder)) {
+                // queue full, give the stock back
+                releaseClaimed(Collections.singletonList(voucherOrder));
+                return Result.fail("too many requests, please retry later");
+            }
         }
-
-        // get proxy object, because the child thread cannot get proxy
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
 
         // 5. return order id
         return Result.ok(orderId);
     }
 
-    @Transactional
-    public void CreateVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0) {
-            // impossible because check in redis
-            log.error("the user has ordered once.");
-            return;
+    @Override
+    public Result secKillVouchers(SeckillBatchDTO seckillBatch) {
+        List<Long> voucherIds = seckillBatch.getVoucherIds() == null ? Collections.emptyList()
+                : seckillBatch.getVoucherIds().stream().distinct().collect(Collectors.toList());
+        if (voucherIds.isEmpty()) {
+            return Result.fail("no voucher to claim");
         }
+        boolean allOrNothing = !Boolean.FALSE.equals(seckillBatch.getAllOrNothing());
+        Long userId = UserHolder.getUser().getId();
 
-        // 4. decrease stock
-        boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1").eq("voucher_id", voucherOrder.getVoucherId())
-                // add optimal lock, stock > 0
-                .gt("stock", 0).update();
-        if (!success) {
-            // impossible because check in redis
-            log.error("out of stock.");
-            return;
+        // 0. reject in memory what is known sold out, unknown or beyond capacity
+        Map<Long, SeckillClaimDTO> claims = new LinkedHashMap<>();
+        Map<Long, SeckillMeta> metas = new HashMap<>();
+        boolean rejected = false;
+        for (Long voucherId : voucherIds) {
+            SeckillMeta meta = seckillMetaCache.get(voucherId);
+            String errorMsg = seckillSoldOutRegistry.isSoldOut(voucherId) ? "out of stock"
+                    : meta == null ? SECKILL_FAIL_MESSAGES[6] : null;
+            claims.put(voucherId, new SeckillClaimDTO(voucherId, null, errorMsg));
+            metas.put(voucherId, meta);
+            rejected |= errorMsg != null;
+        }
+        List<SeckillClaimDTO> candidates = new ArrayList<>();
+        for (SeckillClaimDTO claim : claims.values()) {
+            if (claim.getErrorMsg() != null || (allOrNothing && rejected)) {
+                // the bundle fails anyway, do not take permits for the rest of it
+                continue;
+            }
+            if (!seckillAdmission.tryAdmit(claim.getVoucherId())) {
+                claim.setErrorMsg("too many requests, please retry later");
+                rejected = true;
+                continue;
+            }
+            claim.setOrderId(idGenerator.nextId(ORDER_ID_PREFIX));
+            candidates.add(claim);
+        }
+        if (candidates.isEmpty() || (allOrNothing && candidates.size() < voucherIds.size())) {
+            return Result.ok(rejectAll(claims.values(), SECKILL_FAIL_MESSAGES[5]));
         }
 
-        // save order
-        save(voucherOrder);
-    }
+        // 1. check and take all vouchers in one script, on the buckets of the user
+        Map<Long, Integer> results = claimAll(userId, allOrNothing, candidates, metas);
+        // 1.1 buckets out of stock: move stock of a sibling bucket to them and claim once more,
+        //     the whole bundle if all or nothing, since nothing is taken then
+        List<SeckillClaimDTO> retry = new ArrayList<>();
+        boolean retryable = true;
+        for (SeckillClaimDTO claim : candidates) {
+            int r = results.get(claim.getVoucherId());
+            if (r == 1 && stealToHome(metas.get(claim.getVoucherId()), userId)) {
+                retry.add(claim);
+            } else if (r == 1) {
+                // every bucket is empty
+                seckillSoldOutRegistry.markSoldOut(claim.getVoucherId());
+                retryable = false;
+            } else if (r != 0 && r != 5) {
+                retryable = false;
+            }
+        }
+        if (!retry.isEmpty() && (!allOrNothing || retryable)) {
+            results.putAll(claimAll(userId, allOrNothing, allOrNothing ? candidates : retry, metas));
+        }
+        List<VoucherOrder> claimed = new ArrayList<>();
+        for (SeckillClaimDTO claim : candidates) {
+            int r = results.get(claim.getVoucherId());
+            if (r == 0) {
+                claimed.add(new VoucherOrder().setId(claim.getOrderId()).setUserId(userId).setVoucherId(claim.getVoucherId()));
+                continue;
+            }
+            claim.setOrderId(null);
+            claim.setErrorMsg(SECKILL_FAIL_MESSAGES[r]);
+        }
 
-    /*private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);@PostConstruct
-    private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
-    private class VoucherOrderHandler implements Runnable {
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1. get order information from blockingQueue
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    // 2. create order
-                    handleVoucherOrder(voucherOrder);
-                } catch (Exception e) {
-                    log.error("create order fail: ", e);
+        // 2. hand the orders to a local queue, the redis stream has them in one message from the script already
+        if (!orderQueue.enqueuedByScript() && !claimed.isEmpty()) {
+            if (allOrNothing) {
+                // all of the bundle or none of it, the queue takes them together
+                if (!orderQueue.offerAll(claimed)) {
+                    releaseClaimed(claimed);
+                    return Result.ok(rejectAll(claims.values(), "too many requests, please retry later"));
+                }
+            } else {
+                for (VoucherOrder voucherOrder : claimed) {
+                    if (!orderQueue.offer(voucherOrder)) {
+                        releaseClaimed(Collections.singletonList(voucherOrder));
+                        SeckillClaimDTO claim = claims.get(voucherOrder.getVoucherId());
+                        claim.setOrderId(null);
+                        claim.setErrorMsg("too many requests, please retry later");
+                    }
                 }
             }
         }
+        return Result.ok(new ArrayList<>(claims.values()));
     }
 
-    @Override
-    public Result secKillVoucher(Long voucherId) {
-        Long userId = UserHolder.getUser().getId();
-        // 1. execute lua script
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(), voucherId.toString(), userId.toString());
-        // 2. check if can order
-        int r = result.intValue();
-        if (r != 0){
-            // 3. result != 0, reject
-            return Result.fail(r == 1?"out of stock":"can only order once");
-        }
-        // 4. result = 0, create order
-        long orderId = redisIdWorker.nextId(ORDER_ID_PREFIX);
-
-        VoucherOrder order = new VoucherOrder();
-        order.setId(orderId);
-        order.setUserId(userId);
-        order.setVoucherId(voucherId);
-        // store the order information to blockingQueue
-        orderTasks.add(order);
+    // seckill.lua on the bucket of the user
+    private int claim(SeckillMeta meta, Long userId, long orderId) {
+        int home = meta.home(userId);
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Arrays.asList(meta.stockKey(home), meta.orderKey(home)),
+                meta.getVoucherId().toString(), userId.toString(), String.valueOf(orderId),
+                String.valueOf(seckillOrderStatus.getTtlSeconds()), orderQueue.enqueuedByScript() ? "1" : "0",
+                String.valueOf(reserveSeconds), toArg(meta.getBegin()), toArg(meta.getEnd()));
+        return result.intValue();
+    }
 
-        // get proxy object, because the child thread cannot get proxy
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+    // seckill_batch.lua on the bucket of the user of every voucher, results by voucher id
+    private Map<Long, Integer> claimAll(Long userId, boolean allOrNothing, List<SeckillClaimDTO> claims,
+                                        Map<Long, SeckillMeta> metas) {
+        List<String> keys = new ArrayList<>(claims.size() * 2);
+        List<String> args = new ArrayList<>(5 + claims.size() * 4);
+        args.add(userId.toString());
+        args.add(String.valueOf(seckillOrderStatus.getTtlSeconds()));
+        args.add(orderQueue.enqueuedByScript() ? "1" : "0");
+        args.add(allOrNothing ? "1" : "0");
+        args.add(String.valueOf(reserveSeconds));
+        for (SeckillClaimDTO claim : claims) {
+            SeckillMeta meta = metas.get(claim.getVoucherId());
+            int home = meta.home(userId);
+            keys.add(meta.stockKey(home));
+            keys.add(meta.orderKey(home));
+            args.add(claim.getVoucherId().toString());
+            args.add(claim.getOrderId().toString());
+            args.add(toArg(meta.getBegin()));
+            args.add(toArg(meta.getEnd()));
+        }
+        List<Long> results = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, keys, args.toArray());
+        Map<Long, Integer> resultOfVoucher = new HashMap<>(claims.size());
+        for (int i = 0; i < claims.size(); i++) {
+            resultOfVoucher.put(claims.get(i).getVoucherId(), results.get(i).intValue());
+        }
+        return resultOfVoucher;
+    }
 
-        // 5. return order id
-        return Result.ok(orderId);
-    }*/
+    private static String toArg(Long epochMilli) {
+        return epochMilli == null ? "" : epochMilli.toString();
+    }
 
     /*
-        secKill v1: based on sql
+     * Move stock of the first sibling bucket having any to the bucket of the user, false if all of them are empty.
+     * The buckets are different slots, so it takes two calls: stock moved out and not in yet is missing for a
+     * moment, and is lost if the node dies in between, the reconciler reports it as a drift.
      */
-    /*@Transactional
-    public Result CreateVoucherOrder(Long voucherId) {
-        Long userId = UserHolder.getUser().getId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        if (count > 0) {
-            return Result.fail("You have ordered before.");
+    private boolean stealToHome(SeckillMeta meta, Long userId) {
+        int home = meta.home(userId);
+        for (int i = 1; i < meta.getBuckets(); i++) {
+            Long n = stringRedisTemplate.execute(STEAL_SCRIPT,
+                    Collections.singletonList(meta.stockKey((home + i) % meta.getBuckets())), String.valueOf(stealBatch));
+            if (n != null && n > 0) {
+                stringRedisTemplate.opsForValue().increment(meta.stockKey(home), n);
+                return true;
+            }
         }
+        return false;
+    }
 
-        // 4. decrease stock
-        boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1").eq("voucher_id", voucherId)
-                // add optimal lock, stock > 0
-                .gt("stock", 0).update();
-        if (!success) {
-            return Result.fail("Out of stock");
+    // give the stock of orders the local queue could not take back in one script, and mark them FAILED
+    private void releaseClaimed(List<VoucherOrder> voucherOrders) {
+        List<String> keys = new ArrayList<>(voucherOrders.size() * 2);
+        List<String> args = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            SeckillMeta meta = seckillMetaCache.getOrSingle(voucherOrder.getVoucherId());
+            int home = meta.home(voucherOrder.getUserId());
+            keys.add(meta.stockKey(home));
+            keys.add(meta.orderKey(home));
+            args.add(voucherOrder.getUserId().toString());
         }
+        Long released = stringRedisTemplate.execute(RELEASE_SCRIPT, keys, args.toArray());
+        if (released != null && released > 0) {
+            voucherOrders.stream().map(VoucherOrder::getVoucherId).distinct().forEach(seckillSoldOutRegistry::clear);
+        }
+        seckillOrderStatus.mark(voucherOrders, SeckillOrderStatus.FAILED);
+    }
 
-        // 5. create order
-        VoucherOrder order = new VoucherOrder();
-        // 5.1 order id
-        long orderId = redisIdWorker.nextId(ORDER_ID_PREFIX);
-        order.setId(orderId);
-        // 5.2 user id
-        order.setUserId(userId);
-        // 5.3 voucher id
-        order.setVoucherId(voucherId);
-        // save order
-        save(order);
-
-        return Result.ok(orderId);
+    private static List<SeckillClaimDTO> rejectAll(Collection<SeckillClaimDTO> claims, String errorMsg) {
+        List<SeckillClaimDTO> rejected = new ArrayList<>(claims.size());
+        for (SeckillClaimDTO claim : claims) {
+            // keep the reason of the vouchers rejected in memory, the others are rejected because of them
+            rejected.add(new SeckillClaimDTO(claim.getVoucherId(), null,
+                    claim.getErrorMsg() == null ? errorMsg : claim.getErrorMsg()));
+        }
+        return rejected;
     }
 
     @Override
-    public Result secKillVoucher(Long voucherId) {
-        // 1. query voucher
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
-        // 2. check if voucher is in selling time
-        if (voucher.getBeginTime().isAfter(LocalDateTime.now())) {
-            return Result.fail("it is not start");
+    public Result payOrder(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        // only a reserved order can be paid, the reservation wheel expires the same row by status too
+        boolean success = update()
+                .set("status", 2).set("pay_time", LocalDateTime.now())
+                .eq("id", orderId).eq("user_id", userId).eq("status", 1).update();
+        if (!success) {
+            return Result.fail("order not found, not created yet, or expired");
         }
-        if (voucher.getEndTime().isBefore(LocalDateTime.now())) {
-            return Result.fail("It is already end");
+        seckillOrderStatus.mark(orderId, userId, SeckillOrderStatus.PAID);
+        return Result.ok();
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> expireReservations(List<Long> orderIds) {
+        // 1. lock the reserved ones, a payment of them waits and then finds them cancelled
+        List<VoucherOrder> expired = query().in("id", orderIds).eq("status", 1).last("for update").list();
+        if (expired.isEmpty()) {
+            return expired;
         }
-        // 3. check if out of stock
-        if (voucher.getStock() < 1) {
-            return Result.fail("Out of stock");
+        // 2. cancel them, active = NULL frees the unique key (user_id, voucher_id, active) for a new order
+        update().set("status", 4).setSql("active = NULL")
+                .in("id", expired.stream().map(VoucherOrder::getId).collect(Collectors.toList())).update();
+        // 3. give the stock back, one update per voucher
+        Map<Long, Long> countOfVoucher = expired.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : countOfVoucher.entrySet()) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock + " + entry.getValue()).eq("voucher_id", entry.getKey()).update();
         }
-        // check if the user had ordered the voucher before
-        Long userId = UserHolder.getUser().getId();
+        return expired;
+    }
 
-        // get lock
-        // SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, ORDER_ID_PREFIX + userId);
-        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + ORDER_ID_PREFIX + userId);
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        List<VoucherOrder> persisted = new ArrayList<>(voucherOrders.size());
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            // 1. save orders by one multi-row insert, redelivered orders are ignored by the unique key
+            int n = orderPipelineMetrics.time(OrderPipelineMetrics.STAGE_INSERT,
+                    () -> getBaseMapper().insertIgnoreBatch(entry.getValue()));
+            // 1.1 the orders now in mysql by primary key, inserted here or by an earlier delivery,
+            //     an order skipped as a second one of the user is not among them
+            Set<Long> ids = query().select("id")
+                    .in("id", entry.getValue().stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                    .list().stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            entry.getValue().stream().filter(voucherOrder -> ids.contains(voucherOrder.getId())).forEach(persisted::add);
+            if (n == 0) {
+                continue;
+            }
 
-        // boolean getLock = lock.tryLock(RedisConstants.LOCK_TTL);
-        boolean getLock = lock.tryLock();
+            // 2. decrease stock by the number of new orders, stock can not go below zero
+            boolean success = orderPipelineMetrics.time(OrderPipelineMetrics.STAGE_STOCK_UPDATE,
+                    () -> seckillVoucherService.update()
+                            .setSql("stock = stock - " + n).eq("voucher_id", voucherId)
+                            .ge("stock", n).update());
+            if (!success) {
+                orderPipelineMetrics.error(OrderPipelineMetrics.STAGE_STOCK_UPDATE);
+                // roll back, the caller creates the orders one by one with what is left
+                throw new RuntimeException("not enough stock for " + n + " orders of voucher " + voucherId);
+            }
+        }
+        return persisted;
+    }
 
-        if (!getLock) {
-            // return fail or re-try
-            return Result.fail("Limit one person order once!");
+    @Transactional
+    public boolean CreateVoucherOrder(VoucherOrder voucherOrder) {
+        // 1. save order, ignored if the user has ordered the voucher
+        int n = orderPipelineMetrics.time(OrderPipelineMetrics.STAGE_INSERT,
+                () -> getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder)));
+        if (n == 0) {
+            // the message is redelivered, or impossible because check in redis: another order of the user
+            boolean redelivered = query().eq("id", voucherOrder.getId()).count() > 0;
+            if (!redelivered) {
+                log.error("the user has ordered once.");
+            }
+            return redelivered;
         }
 
-        try {
-            // get current proxy to make transaction usable (避免事务失效)
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            // unlock after transaction submitted
-            Result r = proxy.CreateVoucherOrder(voucherId);
-            return r;
-        } finally {
-            // unlock
-            lock.unlock();
-        }
-    }*/
+        // 2. decrease stock
+        boolean success = orderPipelineMetrics.time(OrderPipelineMetrics.STAGE_STOCK_UPDATE,
+                () -> seckillVoucherService.update()
+                        .setSql("stock = stock - 1").eq("voucher_id", voucherOrder.getVoucherId())
+                        // add optimal lock, stock > 0
+                        .gt("stock", 0).update());
+        if (!success) {
+            orderPipelineMetrics.error(OrderPipelineMetrics.STAGE_STOCK_UPDATE);
+            // impossible because check in redis, roll back the order
+            log.error("out of stock.");
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
+        }
+        return true;
+    }
 }
@@ -8,12 +8,20 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillMeta;
+import com.hmdp.utils.SeckillMetaCache;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -30,6 +38,13 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillMetaCache seckillMetaCache;
+
+    @Value("${hmdp.seckill.stock-buckets:1}")
+    private int stockBuckets;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,6 +67,43 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         // save seckill voucher to redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        int buckets = voucher.getStockBuckets() == null ? stockBuckets : voucher.getStockBuckets();
+        saveSeckillMeta(voucher, buckets);
+        saveSeckillStock(new SeckillMeta(voucher.getId(), buckets, null, null), voucher.getStock());
+        seckillMetaCache.invalidate(voucher.getId());
+        // restocked, requests for the voucher must run the script again
+        seckillSoldOutRegistry.clear(voucher.getId());
+    }
+
+    private void saveSeckillStock(SeckillMeta meta, int stock) {
+        if (!meta.isSharded()) {
+            // single stock key
+            stringRedisTemplate.opsForValue().set(meta.stockKey(0), String.valueOf(stock));
+            return;
+        }
+        // split stock across buckets, seckill:stock:{voucherId:bucket}, the remainder goes to the first buckets,
+        // one SET per bucket since the buckets are different slots
+        int buckets = meta.getBuckets();
+        for (int i = 0; i < buckets; i++) {
+            int bucketStock = stock / buckets + (i < stock % buckets ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(meta.stockKey(i), String.valueOf(bucketStock));
+        }
+    }
+
+    private void saveSeckillMeta(Voucher voucher, int buckets) {
+        // cached by SeckillMetaCache to route users to a bucket and pass the sale window to seckill.lua
+        Map<String, String> meta = new HashMap<>(3);
+        meta.put("buckets", String.valueOf(buckets));
+        if (voucher.getBeginTime() != null) {
+            meta.put("begin", String.valueOf(toEpochMilli(voucher.getBeginTime())));
+        }
+        if (voucher.getEndTime() != null) {
+            meta.put("end", String.valueOf(toEpochMilli(voucher.getEndTime())));
+        }
+        stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_META_KEY + voucher.getId(), meta);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
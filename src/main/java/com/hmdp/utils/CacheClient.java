@@ -1,24 +1,44 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * Cache Client
  * <p>
  * Implement redis cache and define some solutions for common high concurrent problem
+ * The pass through and mutex solutions are fronted by the NearCache of this node, which a writer invalidates
+ * on all nodes by delete. The logical expiration solution reads redis every time, it is refreshed in place.
+ * Values are stored in the binary frames of CacheSerializer, an empty value is a known missing one.
+ * Against cache avalanche every ttl is stretched by a random jitter, so keys written together do not expire
+ * together, and a logically expiring value is refreshed early with a probability rising towards its expiry.
  * </p>
  *
  * @author Zihao Shen
@@ -30,9 +50,41 @@ public class CacheClient {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private NearCache nearCache;
+    @Resource
+    private CacheSerializer cacheSerializer;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
 
     private static final ExecutorService CACHE_RELOAD_EXECUTOR = Executors.newFixedThreadPool(10);
 
+    @Value("${hmdp.cache.load-wait-ms:500}")
+    private long loadWaitMs;
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double earlyRefreshBeta;
+    @Value("${hmdp.cache.early-refresh.min-load-ms:100}")
+    private long earlyRefreshMinLoadMs;
+
+    // loads in progress in this node, callers of the same key share one
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+    // keys this node waits for another node to load
+    private final Map<String, CompletableFuture<Void>> remoteLoads = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> loaded = remoteLoads.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (loaded != null) {
+                loaded.complete(null);
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_LOADED_CHANNEL));
+    }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -42,14 +94,90 @@ public class CacheClient {
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, cacheSerializer.serialize(value), jitter(unit.toSeconds(time)));
+    }
+
+    // known missing value against cache penetration
+    private void setNull(String key) {
+        setBytes(key, new byte[0], jitter(TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL)));
+    }
+
+    // stretch a ttl by up to ttl-jitter of itself
+    private long jitter(long ttl) {
+        return ttl + (long) (ttl * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /*
+     * Probabilistic early expiration (XFetch): refresh when now - loadTime * beta * ln(random) >= expireAt.
+     * -ln(random) is exponential, so the chance of a refresh grows as the expiry approaches, and faster for
+     * values that are slow to load. The refreshes of a hot key or of keys written together are spread out
+     * instead of all falling on the expiry.
+     */
+    private boolean shouldRefresh(RedisData redisData) {
+        long loadMs = Math.max(redisData.getLoadMillis(), earlyRefreshMinLoadMs);
+        double random = 1 - ThreadLocalRandom.current().nextDouble();
+        double early = -loadMs * earlyRefreshBeta * Math.log(random);
+        return System.currentTimeMillis() + early >= redisData.getExpireAt();
+    }
+
+    private void setBytes(String key, byte[] value, long seconds) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.setEx(key.getBytes(StandardCharsets.UTF_8), seconds, value));
+    }
+
+    // a value entry, null if missing or written as an envelope by the logical expiration path
+    private byte[] getBytes(String key) {
+        byte[] bytes = getRaw(key);
+        return bytes == null || !cacheSerializer.isValue(bytes) ? null : bytes;
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the cached list, null if not cached
+     */
+    public <R> List<R> getList(String key, Class<R> rClass) {
+        byte[] bytes = getBytes(key);
+        return bytes == null ? null : cacheSerializer.deserializeList(bytes, rClass);
+    }
+
+    /**
+     * Delete the cached value in redis and in the near cache of all nodes, writers must use this instead of
+     * deleting the redis key directly.
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        nearCache.invalidate(key);
+        hotKeyDetector.evict(key);
+    }
+
+    private <R> R queryNearCache(String key, Class<R> rClass, Supplier<R> redisQuery) {
+        // 0. count the access, the near cache already keeps hot keys of these solutions in memory
+        hotKeyDetector.record(key);
+        // 1. query the near cache of this node
+        Object cached = nearCache.get(key);
+        if (cached != null) {
+            return cached == NearCache.NULL ? null : rClass.cast(cached);
+        }
+        // 2. else, query redis (and database), then keep the result in the near cache
+        long generation = nearCache.generation(key);
+        R r = redisQuery.get();
+        nearCache.put(key, r, generation);
+        return r;
     }
 
     public void setWithLogicalExpiration(String key, Object value, Long time, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setWithLogicalExpiration(key, value, time, unit, 0);
+    }
+
+    private void setWithLogicalExpiration(String key, Object value, Long time, TimeUnit unit, int loadMillis) {
+        byte[] bytes = cacheSerializer.serializeWithExpiration(value,
+                System.currentTimeMillis() + jitter(unit.toMillis(time)), loadMillis);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(key.getBytes(StandardCharsets.UTF_8), bytes));
     }
 
     /*
@@ -58,17 +186,19 @@ public class CacheClient {
      */
     public <R, ID> R queryByID_passThroughSolution(String keyPrefix, ID id, Long time, TimeUnit unit,
                                                    Class<R> tClass, Function<ID, R> dbFallBack) {
+        return queryNearCache(keyPrefix + id, tClass,
+                () -> passThroughSolution(keyPrefix, id, time, unit, tClass, dbFallBack));
+    }
+
+    private <R, ID> R passThroughSolution(String keyPrefix, ID id, Long time, TimeUnit unit,
+                                          Class<R> tClass, Function<ID, R> dbFallBack) {
         String key = keyPrefix + id;
         // 1. query cache from redis
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2. check if exist
-        if (StrUtil.isNotBlank(json)) {
-            // 3. if exist, return
-            return JSONUtil.toBean(json, tClass);
-        }
-        // 2.1 check if shop is empty string (create to avoid cache penetration)
-        if (json != null){ // shopJson is "" or null
-            return null;
+        if (bytes != null) {
+            // 3. if exist, return, an empty value (create to avoid cache penetration) is null
+            return cacheSerializer.deserialize(bytes, tClass);
         }
 
         // 4. else, query from database
@@ -76,9 +206,7 @@ public class CacheClient {
 
         // 5. if shop not exist, save null to redis and return error to avoid cache penetration
         if (r == null) {
-//            stringRedisTemplate.opsForValue().set(key, "",
-//                    RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            this.set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
             return null;
         }
 
@@ -89,71 +217,254 @@ public class CacheClient {
         return r;
     }
 
+    /*
+     * Batch query with the protections of the single id solutions:
+     *   one MGET for all ids, a "" hit is a known missing value (penetration). The misses are loaded by one
+     *   database query and written back in one pipeline, missing ids as "" with CACHE_NULL_TTL. Misses already
+     *   being loaded by another caller of this node are waited for instead of loaded again (breakdown).
+     *   Values are decoded per call and not kept in the near cache, callers decorate them (distance, isLike...),
+     *   so a shared load hands its waiters the bytes and every caller decodes its own instance.
+     *   The result keeps the order of ids, missing ids are left out.
+     */
+    public <R, ID> List<R> queryByIds(String keyPrefix, List<ID> ids, Long time, TimeUnit unit, Class<R> rClass,
+                                      Function<R, ID> idOf, Function<List<ID>, List<R>> dbFallBack) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1. query cache from redis in one round trip
+        byte[][] keys = ids.stream().map(id -> (keyPrefix + id).getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+        Map<ID, R> found = new HashMap<>(ids.size());
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            // count the access, for detection only, the values are decorated by callers and not replicated
+            hotKeyDetector.record(keyPrefix + ids.get(i));
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes == null || !cacheSerializer.isValue(bytes)) {
+                // an empty value is a known missing one, only null or an envelope is a miss
+                misses.add(ids.get(i));
+            } else if (bytes.length > 0) {
+                found.put(ids.get(i), cacheSerializer.deserialize(bytes, rClass));
+            }
+        }
+
+        // 2. load the misses, sharing loads in progress in this node
+        if (!misses.isEmpty()) {
+            found.putAll(loadMisses(keyPrefix, misses, time, unit, rClass, idOf, dbFallBack));
+        }
+
+        // 3. keep the order of ids
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    private <R, ID> Map<ID, R> loadMisses(String keyPrefix, List<ID> misses, Long time, TimeUnit unit, Class<R> rClass,
+                                          Function<R, ID> idOf, Function<List<ID>, List<R>> dbFallBack) {
+        Map<ID, R> loaded = new HashMap<>(misses.size());
+        // 1. take over the misses nobody in this node is loading
+        Map<ID, CompletableFuture<Object>> owned = new LinkedHashMap<>();
+        Map<ID, CompletableFuture<Object>> others = new HashMap<>();
+        for (ID id : misses) {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(keyPrefix + id, future);
+            if (inFlight == null) {
+                owned.put(id, future);
+            } else {
+                others.put(id, inFlight);
+            }
+        }
+
+        // 2. load them by one database query, write back by one pipeline, and hand them to the waiters
+        if (!owned.isEmpty()) {
+            try {
+                List<ID> ownedIds = new ArrayList<>(owned.keySet());
+                Map<ID, R> fromDb = dbFallBack.apply(ownedIds).stream()
+                        .collect(Collectors.toMap(idOf, Function.identity(), (a, b) -> a));
+                Map<ID, byte[]> serialized = new HashMap<>(ownedIds.size());
+                for (ID id : ownedIds) {
+                    R r = fromDb.get(id);
+                    serialized.put(id, r == null ? new byte[0] : cacheSerializer.serialize(r));
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (ID id : ownedIds) {
+                        byte[] key = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                        byte[] bytes = serialized.get(id);
+                        long ttl = bytes.length == 0 ? TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL)
+                                : unit.toSeconds(time);
+                        connection.setEx(key, jitter(ttl), bytes);
+                    }
+                    return null;
+                });
+                // the waiters get the bytes and decode their own instance, callers decorate the values per request
+                owned.forEach((id, future) -> future.complete(serialized.get(id)));
+                loaded.putAll(fromDb);
+            } catch (RuntimeException e) {
+                owned.values().forEach(future -> future.completeExceptionally(e));
+                throw e;
+            } finally {
+                owned.forEach((id, future) -> inFlightLoads.remove(keyPrefix + id, future));
+            }
+        }
+
+        // 3. wait for the misses loaded by others, bounded, then read them on our own
+        List<ID> late = new ArrayList<>();
+        for (Map.Entry<ID, CompletableFuture<Object>> entry : others.entrySet()) {
+            try {
+                R r = copyOf(entry.getValue().get(loadWaitMs, TimeUnit.MILLISECONDS), rClass);
+                if (r != null) {
+                    loaded.put(entry.getKey(), r);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException | TimeoutException e) {
+                late.add(entry.getKey());
+            }
+        }
+        if (!late.isEmpty()) {
+            dbFallBack.apply(late).forEach(r -> loaded.put(idOf.apply(r), r));
+        }
+        return loaded;
+    }
+
+    // a fresh instance of a shared load result, bytes of a batch load or the value of a single flight load
+    private <R> R copyOf(Object shared, Class<R> rClass) {
+        if (shared == null) {
+            return null;
+        }
+        byte[] bytes = shared instanceof byte[] ? (byte[]) shared : cacheSerializer.serialize(shared);
+        return cacheSerializer.deserialize(bytes, rClass);
+    }
+
     /*
      * Solve Cache BreakDown:
      *   The solution will use mutex lock to ensure only a thread can assess the database. But the cost is efficiency.
+     *   Callers of the same key in this node share one load (single flight), so only one thread per node
+     *   races for the mutex. A node losing the race waits for the "loaded" notification of the winner by
+     *   pub/sub instead of polling, at most load-wait-ms, then falls back to the database.
      */
     public <R,ID> R queryByID_MutexSolution(String keyPredix, ID id, String lockKeyPrefix, Long time, TimeUnit unit,
                                         Class<R> rClass, Function<ID, R> dbFallBack) {
+        return queryNearCache(keyPredix + id, rClass,
+                () -> singleFlight(keyPredix + id, rClass, dbFallBack, id,
+                        () -> mutexSolution(keyPredix, id, lockKeyPrefix, time, unit, rClass, dbFallBack)));
+    }
+
+    private <R, ID> R singleFlight(String key, Class<R> rClass, Function<ID, R> dbFallBack, ID id, Supplier<R> load) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, future);
+        if (inFlight != null) {
+            // 1. another thread of this node is loading the key, share its result.
+            //    It may wait load-wait-ms for another node itself and then read the database, so wait twice as long
+            try {
+                Object shared = inFlight.get(loadWaitMs * 2, TimeUnit.MILLISECONDS);
+                // a batch load of the same key hands out bytes
+                return shared instanceof byte[] ? cacheSerializer.deserialize((byte[]) shared, rClass)
+                        : rClass.cast(shared);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException | TimeoutException e) {
+                // the load failed or is too slow, read on our own
+                return readOrFallBack(key, rClass, dbFallBack, id);
+            }
+        }
+        // 2. this thread loads the key for all callers of this node
+        try {
+            R r = load.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
+
+    private <R,ID> R mutexSolution(String keyPredix, ID id, String lockKeyPrefix, Long time, TimeUnit unit,
+                                   Class<R> rClass, Function<ID, R> dbFallBack) {
         String key = keyPredix + id;
         // 1. query cache from redis
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2. check if exist
-        if (StrUtil.isNotBlank(json)) {
-            // 3. if exist, return
-            R r = JSONUtil.toBean(json, rClass);
-            return r;
-        }
-        // 2.1 check if it is empty string (create to avoid cache penetration)
-        if (json != null){ // json is "" or null
-            return null;
+        if (bytes != null) {
+            // 3. if exist, return, an empty value (create to avoid cache penetration) is null
+            return cacheSerializer.deserialize(bytes, rClass);
         }
 
         // 4 rebuild cache
         // 4.1 try to get mutex
-        R r = null;
         String lockKey = lockKeyPrefix + id;
+        boolean getLock = tryLock(lockKey);
+        // 4.2 check if get mutex
+        if (! getLock) {
+            // 4.3 another node is loading, wait for its notification
+            return awaitRemoteLoad(key, rClass, dbFallBack, id);
+        }
+        R r = null;
         try {
-            boolean getLock = tryLock(lockKey);
-            // 4.2 check if get mutex
-            if (! getLock) {
-                // 4.3 sleep if not get mutex and repeat
-                Thread.sleep(50);
-                return queryByID_MutexSolution(keyPredix, id, lockKeyPrefix, time, unit, rClass, dbFallBack);
-            }
             // 4.4 double check cache to make sure the shop is not in cache
-            json = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(json)) {
-                r = JSONUtil.toBean(json, rClass);
+            bytes = getBytes(key);
+            if (bytes != null) {
+                r = cacheSerializer.deserialize(bytes, rClass);
                 return r;
             }
-            if (json != null){
-                return null;
-            }
 
             // 4.4 query sql database if get mutex
             r = dbFallBack.apply(id);
-            Thread.sleep(200);//simulate long task
 
             // 5. if not exist, save null to redis and return error to avoid cache penetration
             if (r == null) {
-                stringRedisTemplate.opsForValue().set(key, "",
-                        RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                setNull(key);
                 return null;
             }
 
-            // 6. else, save it into redis, expire after 30 min
-            this.set(key, r, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            // 6. else, save it into redis
+            this.set(key, r, time, unit);
+        } finally {
+            // 7. unlock mutex, wake up the nodes waiting for the key, and return
+            unLock(lockKey);
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_LOADED_CHANNEL, key);
+        }
+        return r;
+    }
 
+    private <R, ID> R awaitRemoteLoad(String key, Class<R> rClass, Function<ID, R> dbFallBack, ID id) {
+        CompletableFuture<Void> loaded = remoteLoads.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            // 1. the load may have finished before we listened, check redis once more
+            byte[] bytes = getBytes(key);
+            if (bytes != null) {
+                return cacheSerializer.deserialize(bytes, rClass);
+            }
+            // 2. wait for the notification, bounded
+            loaded.get(loadWaitMs, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("wait for loading {} timed out", key);
         } finally {
-            // 7. unlock mutex and return
-            unLock(lockKey);
+            remoteLoads.remove(key, loaded);
         }
-        return r;
+        return readOrFallBack(key, rClass, dbFallBack, id);
     }
 
+    private <R, ID> R readOrFallBack(String key, Class<R> rClass, Function<ID, R> dbFallBack, ID id) {
+        byte[] bytes = getBytes(key);
+        if (bytes != null) {
+            return cacheSerializer.deserialize(bytes, rClass);
+        }
+        // still not loaded, the loader is slow or gone, read the database without filling the cache
+        return dbFallBack.apply(id);
+    }
 
     /*
      * Solve Cache BreakDown:
@@ -164,20 +475,27 @@ public class CacheClient {
     public <R, ID> R queryByID_LogicExpirationSolution(String keyPredix, ID id, String lockKeyPrefix, Long time, TimeUnit unit,
                                                        Class<R> rClass, Function<ID, R> dbFallBack) {
         String key = keyPredix + id;
+        // 0. a hot key is served by the replica of this node
+        if (hotKeyDetector.record(key)) {
+            Object replica = hotKeyDetector.getReplica(key);
+            if (replica != null) {
+                return rClass.cast(replica);
+            }
+        }
         // 1. query cache from redis
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2. check if exist
-        if (StrUtil.isBlank(json)) {
+        byte[] bytes = getRaw(key);
+        // 2. check if exist, a value written by the other solutions is not an envelope
+        if (bytes == null || !cacheSerializer.isEnvelope(bytes)) {
             // 3. if not exist, return null
             return null;
         }
-        // 4. if exist, change Json to object
-        RedisData redisData= JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), rClass);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 4. if exist, decode the envelope and the value in one pass, and keep it if the key is hot
+        RedisData redisData = cacheSerializer.deserializeWithExpiration(bytes, rClass);
+        R r = rClass.cast(redisData.getData());
+        hotKeyDetector.putReplica(key, r);
 
-        // 5. check if expire or not
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        // 5. check if expire or not, early by chance
+        if (!shouldRefresh(redisData)) {
             // 5.1 if not expire, return the information
             return r;
         }
@@ -193,8 +511,9 @@ public class CacheClient {
             // 6.3 if get the lock, new a thread to do the job of reloading the cache
             CACHE_RELOAD_EXECUTOR.submit(() -> {
                 try {
+                    long begin = System.currentTimeMillis();
                     R newR = dbFallBack.apply(id);
-                    this.setWithLogicalExpiration(key, newR, time, unit);
+                    this.setWithLogicalExpiration(key, newR, time, unit, (int) (System.currentTimeMillis() - begin));
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 } finally {
@@ -209,18 +528,9 @@ public class CacheClient {
 
     public <R, ID> void saveShopToRedis(String keyPrefix, ID id, Long ExpireSeconds, Function<ID, R> dbFallBack){
         // 1. query shop information
+        long begin = System.currentTimeMillis();
         R r = dbFallBack.apply(id);
-        try {
-            Thread.sleep(200);//simulate long task
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-        /* // 2. set logical expiration time
-        RedisData data = new RedisData();
-        data.setData(r);
-        data.setExpireTime(LocalDateTime.now().plusSeconds(ExpireSeconds));
-        // 3. save to redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(data));*/
-        this.setWithLogicalExpiration(keyPrefix + id, r, ExpireSeconds, TimeUnit.SECONDS);
+        int loadMillis = (int) (System.currentTimeMillis() - begin);
+        this.setWithLogicalExpiration(keyPrefix + id, r, ExpireSeconds, TimeUnit.SECONDS, loadMillis);
     }
 }
@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * <p>
+ *     Encoding of the payload of a cache entry. CacheSerializer frames the payload with a header naming the codec,
+ *     so entries written by any codec stay readable after the configured one changes.
+ *     A codec must tolerate fields added or removed since the entry was written.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+public interface CacheCodec {
+
+    /**
+     * @return id written in the frame header, never changes once entries are written with it
+     */
+    byte id();
+
+    byte[] encode(Object value);
+
+    <R> R decode(byte[] bytes, int offset, int length, Class<R> rClass);
+
+    <R> List<R> decodeList(byte[] bytes, int offset, int length, Class<R> rClass);
+}
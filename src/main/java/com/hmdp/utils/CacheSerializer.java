@@ -0,0 +1,160 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *     Binary frame of cache entries around the payload of a CacheCodec:
+ *       [0xC7 magic][frame version][codec id][kind] ( envelope fields if kind is envelope ) payload
+ *     envelope fields: v1 [expire at, epoch millis, 8 bytes], v2 adds [load millis, 4 bytes].
+ *     The codec of new entries is hmdp.cache.codec, an entry is always read with the codec named in its header.
+ *     An entry without the magic byte is the plain JSON of the old format (a RedisData envelope had
+ *     a LocalDateTime expireTime), still read until it expires. An empty entry is a known missing value.
+ *     A key written as an envelope may be read as a value and the other way around, readers check the kind
+ *     with isValue or isEnvelope first and take a frame of the other kind as a miss.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Component
+public class CacheSerializer {
+
+    private static final byte MAGIC = (byte) 0xC7;
+    private static final byte FRAME_VERSION_1 = 1;
+    private static final byte FRAME_VERSION = 2;
+    private static final byte VALUE = 0;
+    private static final byte ENVELOPE = 1;
+    private static final int HEADER_LENGTH = 4;
+    private static final int ENVELOPE_V1_HEADER_LENGTH = HEADER_LENGTH + Long.BYTES;
+    private static final int ENVELOPE_HEADER_LENGTH = ENVELOPE_V1_HEADER_LENGTH + Integer.BYTES;
+
+    @Value("${hmdp.cache.codec:smile}")
+    private String codecName;
+
+    private final Map<Byte, CacheCodec> codecs = new HashMap<>();
+    private CacheCodec writer;
+
+    @PostConstruct
+    private void init() {
+        CacheCodec json = new JsonCacheCodec();
+        CacheCodec smile = new SmileCacheCodec();
+        codecs.put(json.id(), json);
+        codecs.put(smile.id(), smile);
+        writer = "json".equals(codecName) ? json : smile;
+    }
+
+    public byte[] serialize(Object value) {
+        byte[] payload = writer.encode(value);
+        return ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                .put(MAGIC).put(FRAME_VERSION).put(writer.id()).put(VALUE)
+                .put(payload)
+                .array();
+    }
+
+    public byte[] serializeWithExpiration(Object value, long expireAt, int loadMillis) {
+        byte[] payload = writer.encode(value);
+        return ByteBuffer.allocate(ENVELOPE_HEADER_LENGTH + payload.length)
+                .put(MAGIC).put(FRAME_VERSION).put(writer.id()).put(ENVELOPE)
+                .putLong(expireAt).putInt(loadMillis)
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * @return true for a value frame or an empty entry, what deserialize and deserializeList read
+     */
+    public boolean isValue(byte[] bytes) {
+        return bytes.length == 0 || kindOf(bytes) == VALUE;
+    }
+
+    /**
+     * @return true for an envelope frame, what deserializeWithExpiration reads
+     */
+    public boolean isEnvelope(byte[] bytes) {
+        return bytes.length > 0 && kindOf(bytes) == ENVELOPE;
+    }
+
+    private byte kindOf(byte[] bytes) {
+        if (bytes[0] != MAGIC) {
+            // old format, only a RedisData envelope has an expireTime
+            return new String(bytes, StandardCharsets.UTF_8).contains("\"expireTime\"") ? ENVELOPE : VALUE;
+        }
+        return bytes.length < HEADER_LENGTH ? -1 : bytes[3];
+    }
+
+    /**
+     * @return the value, null for an empty entry
+     */
+    public <R> R deserialize(byte[] bytes, Class<R> rClass) {
+        if (bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] != MAGIC) {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), rClass);
+        }
+        return codecOf(bytes).decode(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, rClass);
+    }
+
+    public <R> List<R> deserializeList(byte[] bytes, Class<R> rClass) {
+        if (bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] != MAGIC) {
+            return JSONUtil.toList(new String(bytes, StandardCharsets.UTF_8), rClass);
+        }
+        return codecOf(bytes).decodeList(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, rClass);
+    }
+
+    /**
+     * Decode an envelope in one pass, the payload straight to rClass.
+     * @return envelope with the value of rClass as data, null for an empty entry
+     */
+    public RedisData deserializeWithExpiration(byte[] bytes, Class<?> rClass) {
+        if (bytes.length == 0) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        if (bytes[0] != MAGIC) {
+            // old format, {"expireTime": LocalDateTime, "data": {...}}
+            JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+            LocalDateTime expireTime = json.get("expireTime", LocalDateTime.class);
+            redisData.setExpireAt(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            redisData.setData(json.getJSONObject("data").toBean(rClass));
+            return redisData;
+        }
+        CacheCodec codec = codecOf(bytes);
+        ByteBuffer header = ByteBuffer.wrap(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+        redisData.setExpireAt(header.getLong());
+        // v1 has no load time, it is refreshed only when expired
+        int headerLength = ENVELOPE_V1_HEADER_LENGTH;
+        if (bytes[1] != FRAME_VERSION_1) {
+            redisData.setLoadMillis(header.getInt());
+            headerLength = ENVELOPE_HEADER_LENGTH;
+        }
+        redisData.setData(codec.decode(bytes, headerLength, bytes.length - headerLength, rClass));
+        return redisData;
+    }
+
+    private CacheCodec codecOf(byte[] bytes) {
+        if (bytes[1] != FRAME_VERSION_1 && bytes[1] != FRAME_VERSION) {
+            throw new IllegalStateException("unknown cache frame version " + bytes[1]);
+        }
+        CacheCodec codec = codecs.get(bytes[2]);
+        if (codec == null) {
+            throw new IllegalStateException("unknown cache codec " + (char) bytes[2]);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,183 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>
+ *     Per node hot key detection of redis keys read by CacheClient and the shop and blog services.
+ *     Accesses are sampled into a count-min sketch (depth x width counters, the estimate of a key is the least
+ *     of its counters, never below the true count). All counters are halved every decay interval, so a count
+ *     is about twice the accesses per interval for a steady rate and fades out when the key cools.
+ *     A key whose estimate reaches the threshold is hot: its value may be kept in a replica in memory with a short
+ *     ttl, and it is demoted when the estimate falls below half the threshold after a decay.
+ *     Replicas are dropped on cache:invalidate like the near cache. The hot keys are the actuator endpoint
+ *     /actuator/hotkeys.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.hot-key.width:16384}")
+    private int width;
+    @Value("${hmdp.cache.hot-key.sample-rate:0.1}")
+    private double sampleRate;
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private long threshold;
+    @Value("${hmdp.cache.hot-key.max-keys:100}")
+    private int maxKeys;
+    @Value("${hmdp.cache.hot-key.replica-ttl-ms:1000}")
+    private long replicaTtlMs;
+
+    private int mask;
+    private AtomicIntegerArray counters;
+    // hot keys and their estimated counts
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+    private Cache<String, Object> replicas;
+
+    @PostConstruct
+    private void init() {
+        // round the width up to a power of two, a row index is a mask of the hash
+        width = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        mask = width - 1;
+        counters = new AtomicIntegerArray(DEPTH * width);
+        replicas = Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterWrite(replicaTtlMs, TimeUnit.MILLISECONDS)
+                .build();
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                        replicas.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * Count an access of the key, sampled.
+     * @return true if the key is hot
+     */
+    public boolean record(String key) {
+        if (!enabled) {
+            return false;
+        }
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return hotKeys.containsKey(key);
+        }
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters.incrementAndGet(i * width + ((h1 + i * h2) & mask)));
+        }
+        long estimate = (long) (min / sampleRate);
+        if (estimate < threshold) {
+            return hotKeys.containsKey(key);
+        }
+        if (hotKeys.containsKey(key) || hotKeys.size() < maxKeys) {
+            hotKeys.put(key, estimate);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the replica of a hot key, null if none
+     */
+    public Object getReplica(String key) {
+        return hotKeys.containsKey(key) ? replicas.getIfPresent(key) : null;
+    }
+
+    public void putReplica(String key, Object value) {
+        if (value != null && hotKeys.containsKey(key)) {
+            replicas.put(key, value);
+        }
+    }
+
+    // drop the replica in this node
+    public void evict(String key) {
+        replicas.invalidate(key);
+    }
+
+    // drop the replica in all nodes, for keys not deleted by CacheClient.delete
+    public void invalidate(String key) {
+        replicas.invalidate(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.decay-interval-ms:1000}")
+    public void decay() {
+        if (!enabled) {
+            return;
+        }
+        // halve every counter, an increment racing with it may be lost, which a sampler can afford
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, counters.get(i) >>> 1);
+        }
+        // demote keys cooled below half the threshold, the gap keeps a key near the threshold from flapping
+        hotKeys.replaceAll((key, count) -> estimate(key));
+        hotKeys.entrySet().removeIf(entry -> {
+            boolean cooled = entry.getValue() < threshold / 2;
+            if (cooled) {
+                replicas.invalidate(entry.getKey());
+            }
+            return cooled;
+        });
+    }
+
+    private long estimate(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters.get(i * width + ((h1 + i * h2) & mask)));
+        }
+        return (long) (min / sampleRate);
+    }
+
+    // murmur3 finalizer, String.hashCode of similar keys differs in few bits
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @ReadOperation
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        hotKeys.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(entry -> result.put(entry.getKey(), entry.getValue()));
+        return result;
+    }
+}
@@ -0,0 +1,12 @@
+package com.hmdp.utils;
+
+/**
+ * <p>
+ *     Generate globally unique 64-bit ids, the implementation is chosen by hmdp.id-worker.type
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+public interface IdGenerator {
+    long nextId(String keyPrefix);
+}
@@ -0,0 +1,293 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Append-only journal of this node in memory-mapped segment files, survives a restart of the JVM.
+ *     Each order is a fixed record of 40 bytes, orderId, userId, voucherId, enqueuedAt and a marker written last,
+ *     so a record torn by a crash is not read. The file checkpoint keeps the position below which every order is
+ *     acknowledged, everything after it is delivered again after a restart, and segments below it are unmapped and
+ *     deleted.
+ *     Records reach the page cache on write, which is enough for a JVM crash; set fsync to force them to disk
+ *     for a crash of the machine, at a much higher enqueue latency.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+public class JournalOrderQueue implements OrderQueue {
+
+    private static final int RECORD_SIZE = 40;
+    private static final int MARKER_OFFSET = 32;
+    private static final int MARKER = 0x4F524452;
+
+    private final Path dir;
+    private final long segmentRecords;
+    private final boolean fsync;
+    private final MappedByteBuffer checkpoint;
+
+    // all state below is guarded by lock
+    private final Object lock = new Object();
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    // positions taken by consumers and not acknowledged yet
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    private long checkpointPos;
+    private long readPos;
+    private long writePos;
+    // the mappings are released, an access would crash the jvm
+    private boolean closed;
+
+    public JournalOrderQueue(String dir, long segmentRecords, boolean fsync) throws IOException {
+        this.dir = Paths.get(dir);
+        this.segmentRecords = segmentRecords;
+        this.fsync = fsync;
+        Files.createDirectories(this.dir);
+        try (FileChannel channel = FileChannel.open(this.dir.resolve("checkpoint"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            checkpoint = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        }
+        // replay from the checkpoint to the last complete record
+        checkpointPos = checkpoint.getLong(0);
+        readPos = checkpointPos;
+        writePos = checkpointPos;
+        while (segment(writePos).getInt(offset(writePos) + MARKER_OFFSET) == MARKER) {
+            writePos++;
+        }
+        if (writePos > readPos) {
+            log.info("order journal {} replays {} orders from {}", dir, writePos - readPos, readPos);
+        }
+    }
+
+    @Override
+    public boolean enqueuedByScript() {
+        return false;
+    }
+
+    @Override
+    public boolean offer(VoucherOrder voucherOrder) {
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return false;
+                }
+                write(writePos, voucherOrder);
+                writePos++;
+                lock.notifyAll();
+            }
+            return true;
+        } catch (UncheckedIOException e) {
+            log.error("append order {} to journal fail: ", voucherOrder.getId(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean offerAll(List<VoucherOrder> voucherOrders) {
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            long pos = writePos;
+            try {
+                for (VoucherOrder voucherOrder : voucherOrders) {
+                    write(pos, voucherOrder);
+                    pos++;
+                }
+            } catch (UncheckedIOException e) {
+                // take none of them, the records written are not read and overwritten by the next offer
+                for (long p = writePos; p < pos; p++) {
+                    segment(p).putInt(offset(p) + MARKER_OFFSET, 0);
+                }
+                log.error("append {} orders to journal fail: ", voucherOrders.size(), e);
+                return false;
+            }
+            // readable only once all of them are written
+            writePos = pos;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    // guarded by lock
+    private void write(long pos, VoucherOrder voucherOrder) {
+        MappedByteBuffer segment = segment(pos);
+        int offset = offset(pos);
+        segment.putLong(offset, voucherOrder.getId());
+        segment.putLong(offset + 8, voucherOrder.getUserId());
+        segment.putLong(offset + 16, voucherOrder.getVoucherId());
+        segment.putLong(offset + 24, System.currentTimeMillis());
+        // the marker makes the record complete
+        segment.putInt(offset + MARKER_OFFSET, MARKER);
+        if (fsync) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public List<QueuedOrder> take(String consumerName, int maxCount, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (lock) {
+            while (readPos == writePos || closed) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    return Collections.emptyList();
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, wait);
+            }
+            int n = (int) Math.min(maxCount, writePos - readPos);
+            List<QueuedOrder> orders = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                MappedByteBuffer segment = segment(readPos);
+                int offset = offset(readPos);
+                VoucherOrder voucherOrder = new VoucherOrder()
+                        .setId(segment.getLong(offset))
+                        .setUserId(segment.getLong(offset + 8))
+                        .setVoucherId(segment.getLong(offset + 16));
+                orders.add(new QueuedOrder(voucherOrder, readPos, segment.getLong(offset + 24)));
+                inFlight.add(readPos);
+                readPos++;
+            }
+            return orders;
+        }
+    }
+
+    @Override
+    public void ack(String consumerName, List<QueuedOrder> orders) {
+        synchronized (lock) {
+            if (closed) {
+                // delivered again after the restart
+                return;
+            }
+            for (QueuedOrder order : orders) {
+                inFlight.remove((Long) order.getId());
+            }
+            // everything below the oldest order in flight is acknowledged
+            long pos = inFlight.isEmpty() ? readPos : inFlight.first();
+            if (pos <= checkpointPos) {
+                return;
+            }
+            checkpoint.putLong(0, pos);
+            if (fsync) {
+                checkpoint.force();
+            }
+            checkpointPos = pos;
+            deleteSegmentsBelow(pos / segmentRecords);
+        }
+    }
+
+    @Override
+    public void retry(String consumerName, List<QueuedOrder> orders) {
+        // append them again and acknowledge the old records, so the checkpoint is not held back
+        for (QueuedOrder order : orders) {
+            offer(order.getVoucherOrder());
+        }
+        ack(consumerName, orders);
+    }
+
+    @Override
+    public long size() {
+        synchronized (lock) {
+            return writePos - readPos;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            segments.values().forEach(segment -> {
+                segment.force();
+                unmap(segment);
+            });
+            segments.clear();
+            checkpoint.force();
+            unmap(checkpoint);
+            lock.notifyAll();
+        }
+    }
+
+    private int offset(long pos) {
+        return (int) (pos % segmentRecords) * RECORD_SIZE;
+    }
+
+    private MappedByteBuffer segment(long pos) {
+        long index = pos / segmentRecords;
+        MappedByteBuffer segment = segments.get(index);
+        if (segment != null) {
+            return segment;
+        }
+        // a new segment file is zero filled, so it has no marker
+        try (FileChannel channel = FileChannel.open(segmentFile(index),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentRecords * RECORD_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segments.put(index, segment);
+        return segment;
+    }
+
+    private void deleteSegmentsBelow(long index) {
+        Iterator<Map.Entry<Long, MappedByteBuffer>> it = segments.headMap(index).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, MappedByteBuffer> entry = it.next();
+            long old = entry.getKey();
+            it.remove();
+            // nothing reads below the checkpoint any more, release the mapping instead of waiting for a gc
+            unmap(entry.getValue());
+            try {
+                Files.deleteIfExists(segmentFile(old));
+            } catch (IOException e) {
+                log.warn("delete journal segment {} fail: ", old, e);
+            }
+        }
+    }
+
+    // the jdk has no public unmap: Unsafe.invokeCleaner since java 9, the cleaner of the buffer on java 8
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                log.warn("unmap journal segment fail, left to the gc: ", ex);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("unmap journal segment fail, left to the gc: ", e);
+        }
+    }
+
+    private Path segmentFile(long index) {
+        return dir.resolve(String.format("%020d.journal", index));
+    }
+}
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Hutool JSON in UTF-8, the format of the cache before the codecs, kept for comparison and for reading.
+ *
+ * @author Zihao Shen
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final byte ID = 'J';
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, int offset, int length, Class<R> rClass) {
+        return JSONUtil.toBean(new String(bytes, offset, length, StandardCharsets.UTF_8), rClass);
+    }
+
+    @Override
+    public <R> List<R> decodeList(byte[] bytes, int offset, int length, Class<R> rClass) {
+        return JSONUtil.toList(new String(bytes, offset, length, StandardCharsets.UTF_8), rClass);
+    }
+}
@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ *     Per node L1 cache in front of the redis cache of CacheClient, bounded by size and a short ttl.
+ *     Values are kept decoded, so a hit costs neither a redis call nor a json parse.
+ *     A writer deleting the redis key invalidates it on all nodes by redis pub/sub (message is the key),
+ *     the ttl bounds staleness if a message is lost.
+ *     A value loaded from redis is only put if no invalidation of its stripe of keys arrived since the load started,
+ *     so an update racing with a load can not leave the old value in L1, and a frequent invalidation of one key
+ *     (a like of a blog) does not throw away the loads of all the others.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Component
+public class NearCache {
+
+    // cached "" of redis, a known missing value
+    public static final Object NULL = new Object();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.near.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.near.max-size:10000}")
+    private long maxSize;
+    @Value("${hmdp.cache.near.ttl-ms:5000}")
+    private long ttlMs;
+
+    private Cache<String, Object> cache;
+    private static final int STRIPES = 1024;
+
+    // generation per stripe of keys, bumped on every invalidation of a key of the stripe,
+    // a load started before a bump of its stripe is not put
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    @PostConstruct
+    private void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "near");
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            generations.incrementAndGet(stripe(key));
+            cache.invalidate(key);
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * @return decoded value, NULL for a known missing value, null if not cached
+     */
+    public Object get(String key) {
+        return enabled ? cache.getIfPresent(key) : null;
+    }
+
+    /**
+     * @return generation of the key to pass to put after loading the value
+     */
+    public long generation(String key) {
+        return generations.get(stripe(key));
+    }
+
+    public void put(String key, Object value, long generationBeforeLoad) {
+        if (!enabled) {
+            return;
+        }
+        cache.put(key, value == null ? NULL : value);
+        // an invalidation of the stripe arrived during the load, the value may be the old one
+        if (generation(key) != generationBeforeLoad) {
+            cache.invalidate(key);
+        }
+    }
+
+    public void invalidate(String key) {
+        generations.incrementAndGet(stripe(key));
+        cache.invalidate(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new HashMap<>();
+        result.put("size", cache.estimatedSize());
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictionCount", stats.evictionCount());
+        return result;
+    }
+}
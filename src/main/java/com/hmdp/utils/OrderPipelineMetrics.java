@@ -0,0 +1,171 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ *     Micrometer metrics of the seckill order pipeline, from XADD in seckill.lua to the commit in mysql.
+ *     - gauges seckill.orders.stream.length / pending / lag / lag.seconds, refreshed from redis on a schedule,
+ *       so a scrape never queries redis. lag counts undelivered entries up to a cap, lag.seconds is the age of
+ *       the oldest undelivered entry and is the one to alert on
+ *     - gauge seckill.orders.dlq.length, dead letters are never trimmed, a warning is logged at dlq-alert-len
+ *     - timer seckill.orders.stage with a percentile histogram per stage of the consumer
+ *     - timer seckill.orders.end.to.end, from the enqueue (the stream id for redis) to the commit
+ *     - counters seckill.orders.errors and seckill.orders.retries
+ *     The pipeline snapshot is also exposed as the actuator endpoint /actuator/orderpipeline.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+@Component
+@Endpoint(id = "orderpipeline")
+public class OrderPipelineMetrics {
+
+    public static final String STAGE_BATCH = "batch";
+    public static final String STAGE_INSERT = "insert";
+    public static final String STAGE_STOCK_UPDATE = "stock_update";
+    public static final String STAGE_STATUS = "status";
+
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.metrics.lag-cap:1000}")
+    private int lagCap;
+    @Value("${hmdp.seckill.metrics.dlq-alert-len:1}")
+    private long dlqAlertLen;
+
+    private final AtomicLong length = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    // entries not yet delivered to the group, at most lag-cap
+    private final AtomicLong lag = new AtomicLong();
+    // age of the oldest entry not yet delivered to the group
+    private final AtomicLong lagMs = new AtomicLong();
+    private final AtomicLong dlqLength = new AtomicLong();
+
+    private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> errorCounters = new ConcurrentHashMap<>();
+    private final Map<String, Counter> retryCounters = new ConcurrentHashMap<>();
+    private Timer endToEndTimer;
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("seckill.orders.stream.length", length, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.orders.stream.pending", pending, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.orders.stream.lag", lag, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.orders.stream.lag.seconds", lagMs, ms -> ms.get() / 1000.0).register(meterRegistry);
+        Gauge.builder("seckill.orders.dlq.length", dlqLength, AtomicLong::get).register(meterRegistry);
+        endToEndTimer = Timer.builder("seckill.orders.end.to.end")
+                .description("time from XADD in seckill.lua to the commit of the order")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    public <T> T time(String stage, Supplier<T> supplier) {
+        return stageTimers.computeIfAbsent(stage, s -> Timer.builder("seckill.orders.stage")
+                .tag("stage", s)
+                .publishPercentileHistogram()
+                .register(meterRegistry)).record(supplier);
+    }
+
+    public void committed(long enqueuedAt) {
+        endToEndTimer.record(Duration.ofMillis(Math.max(System.currentTimeMillis() - enqueuedAt, 0)));
+    }
+
+    public void error(String stage) {
+        errorCounters.computeIfAbsent(stage, s -> Counter.builder("seckill.orders.errors")
+                .tag("stage", s).register(meterRegistry)).increment();
+    }
+
+    public void retry(String kind) {
+        retryCounters.computeIfAbsent(kind, k -> Counter.builder("seckill.orders.retries")
+                .tag("kind", k).register(meterRegistry)).increment();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.metrics.interval-ms:5000}")
+    public void refresh() {
+        String queueName = RedisConstants.STREAM_ORDERS_KEY;
+        try {
+            // dead letters wait for someone to handle them, local queues dead letter their orders here too
+            Long dlqSize = stringRedisTemplate.opsForStream().size(RedisConstants.STREAM_ORDERS_DLQ_KEY);
+            dlqLength.set(dlqSize == null ? 0 : dlqSize);
+            if (dlqLength.get() >= dlqAlertLen) {
+                log.warn("{} orders in the dead letter stream {}, their stock is held until handled",
+                        dlqLength.get(), RedisConstants.STREAM_ORDERS_DLQ_KEY);
+            }
+            Long size = stringRedisTemplate.opsForStream().size(queueName);
+            length.set(size == null ? 0 : size);
+            if (length.get() == 0) {
+                pending.set(0);
+                lag.set(0);
+                lagMs.set(0);
+                return;
+            }
+            StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(queueName).stream()
+                    .filter(g -> RedisConstants.STREAM_ORDERS_GROUP.equals(g.groupName()))
+                    .findFirst().orElse(null);
+            if (group == null) {
+                return;
+            }
+            pending.set(group.pendingCount());
+            // entries after the last delivered one, XRANGE with an exclusive start, counted up to a cap
+            List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(queueName,
+                    Range.rightUnbounded(Range.Bound.exclusive(group.lastDeliveredId())), Limit.limit().count(lagCap));
+            if (undelivered == null || undelivered.isEmpty()) {
+                lag.set(0);
+                lagMs.set(0);
+            } else {
+                lag.set(undelivered.size());
+                lagMs.set(Math.max(System.currentTimeMillis() - undelivered.get(0).getId().getTimestamp(), 0));
+            }
+        } catch (Exception e) {
+            log.error("refresh order pipeline metrics fail: ", e);
+        }
+    }
+
+    @ReadOperation
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("length", length.get());
+        snapshot.put("pending", pending.get());
+        snapshot.put("lag", lag.get());
+        snapshot.put("lagSeconds", lagMs.get() / 1000.0);
+        snapshot.put("dlqLength", dlqLength.get());
+        snapshot.put("endToEndMeanMs", endToEndTimer.mean(TimeUnit.MILLISECONDS));
+        snapshot.put("endToEndMaxMs", endToEndTimer.max(TimeUnit.MILLISECONDS));
+        snapshot.put("errors", sum(errorCounters));
+        snapshot.put("retries", sum(retryCounters));
+        return snapshot;
+    }
+
+    private static double sum(Map<String, Counter> counters) {
+        return counters.values().stream().mapToDouble(Counter::count).sum();
+    }
+}
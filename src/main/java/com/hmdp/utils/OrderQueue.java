@@ -0,0 +1,58 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * <p>
+ *     Hand-off of seckill orders from the request thread to the order consumers, the implementation is chosen by
+ *     hmdp.seckill.queue.type
+ *     - redis: stream.orders, added by seckill.lua in the same script, shared by all nodes (RedisStreamOrderQueue)
+ *     - ring: preallocated in-memory ring buffer of this node, lowest latency, lost on a crash (RingBufferOrderQueue)
+ *     - journal: memory-mapped append-only files of this node, replayed after a restart (JournalOrderQueue)
+ *     Orders are acknowledged after they are in mysql, so delivery is at least once except for the ring buffer.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+public interface OrderQueue {
+
+    /**
+     * @return true if seckill.lua adds the order itself, then offer is not called by the seckill request
+     */
+    boolean enqueuedByScript();
+
+    /**
+     * @return false if the queue is full or can not take the order
+     */
+    boolean offer(VoucherOrder voucherOrder);
+
+    /**
+     * Offer the orders of one user's bundle together.
+     *
+     * @return false if the queue can not take all of them, none of them is taken then
+     */
+    boolean offerAll(List<VoucherOrder> voucherOrders);
+
+    /**
+     * Take at most maxCount orders, wait up to the timeout if there is none.
+     */
+    List<QueuedOrder> take(String consumerName, int maxCount, Duration timeout) throws InterruptedException;
+
+    void ack(String consumerName, List<QueuedOrder> orders);
+
+    /**
+     * Hand back orders which could not be persisted, so they are delivered again.
+     */
+    void retry(String consumerName, List<QueuedOrder> orders);
+
+    /**
+     * @return number of orders not taken yet
+     */
+    long size();
+
+    default void close() {
+    }
+}
@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Order Stream Recovery
+ * <p>
+ * Recover the pending list of stream.orders by XPENDING and XCLAIM. Only messages idle longer than the threshold
+ * are claimed, so messages in flight on a live consumer are left alone, and messages of dead consumers on any node
+ * are taken over. A message delivered more than the max deliveries is moved to the dead letter stream.
+ * Consumers idle longer than consumer-idle-ms with nothing pending are removed from the group by XGROUP DELCONSUMER,
+ * a live consumer reading by XREADGROUP is never idle that long.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+@Component
+public class OrderStreamRecovery {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private OrderPipelineMetrics orderPipelineMetrics;
+
+    @Value("${hmdp.seckill.recovery.min-idle-ms:30000}")
+    private long minIdleMs;
+    @Value("${hmdp.seckill.recovery.max-deliveries:5}")
+    private long maxDeliveries;
+    @Value("${hmdp.seckill.recovery.scan-count:100}")
+    private long scanCount;
+    @Value("${hmdp.seckill.recovery.consumer-idle-ms:3600000}")
+    private long consumerIdleMs;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong consumersRemoved = new AtomicLong();
+
+    /**
+     * Claim idle pending messages to the given consumer and handle them one by one,
+     * so that a poison message can not block the others.
+     *
+     * @param consumerName consumer which takes over the claimed messages
+     * @param handler create order for one message, throw if fail
+     * @return number of messages recovered or dead lettered in this round
+     */
+    public int recover(String consumerName, Consumer<MapRecord<String, Object, Object>> handler) {
+        String queueName = RedisConstants.STREAM_ORDERS_KEY;
+        String groupName = RedisConstants.STREAM_ORDERS_GROUP;
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+
+        // 1. XPENDING summary, return if nothing pending
+        PendingMessagesSummary summary = ops.pending(queueName, groupName);
+        pending.set(summary == null ? 0 : summary.getTotalPendingMessages());
+        if (pending.get() == 0) {
+            return 0;
+        }
+
+        // 2. XPENDING detail of the oldest messages of all consumers
+        PendingMessages pendingMessages = ops.pending(queueName, groupName, Range.unbounded(), scanCount);
+        Duration minIdle = Duration.ofMillis(minIdleMs);
+        int done = 0;
+        for (PendingMessage message : pendingMessages) {
+            // 2.1 skip messages still in hand of a live consumer
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0) {
+                continue;
+            }
+            // 3. XCLAIM with min idle time, only one node wins when several recover at the same time
+            List<MapRecord<String, Object, Object>> records = claim(queueName, groupName, consumerName,
+                    minIdle, message.getId());
+            if (records == null || records.isEmpty()) {
+                continue;
+            }
+            claimed.incrementAndGet();
+            orderPipelineMetrics.retry("recovery");
+            MapRecord<String, Object, Object> record = records.get(0);
+            // 3.1 the claim is one more delivery
+            long deliveries = message.getTotalDeliveryCount() + 1;
+
+            // 4. keep failing, move to dead letter stream
+            if (deliveries > maxDeliveries) {
+                deadLetter(record, message.getConsumerName(), deliveries);
+                done++;
+                continue;
+            }
+
+            // 5. handle and ACK, leave it in pending list if fail
+            try {
+                handler.accept(record);
+                ops.acknowledge(queueName, groupName, record.getId());
+                recovered.incrementAndGet();
+                done++;
+            } catch (Exception e) {
+                log.error("recover order {} fail, deliveries {}: ", record.getId(), deliveries, e);
+                orderPipelineMetrics.error("recovery");
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Remove consumers of the group idle longer than consumer-idle-ms with no pending message,
+     * the pending messages of a dead consumer are claimed by recover first.
+     *
+     * @return number of consumers removed
+     */
+    public int removeIdleConsumers() {
+        String queueName = RedisConstants.STREAM_ORDERS_KEY;
+        String groupName = RedisConstants.STREAM_ORDERS_GROUP;
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        List<String> idle = ops.consumers(queueName, groupName).stream()
+                .filter(consumer -> consumer.pendingCount() == 0 && consumer.idleTimeMs() > consumerIdleMs)
+                .map(StreamInfo.XInfoConsumer::consumerName)
+                .collect(Collectors.toList());
+        for (String consumerName : idle) {
+            // a consumer reading again right now is simply created again by its next XREADGROUP
+            ops.deleteConsumer(queueName, org.springframework.data.redis.connection.stream.Consumer.from(groupName,
+                    consumerName));
+            consumersRemoved.incrementAndGet();
+            log.info("removed idle consumer {} of {}", consumerName, groupName);
+        }
+        return idle.size();
+    }
+
+    // XCLAIM through the connection, StreamOperations of this spring-data-redis has no claim
+    private List<MapRecord<String, Object, Object>> claim(String queueName, String groupName, String consumerName,
+                                                          Duration minIdle, RecordId id) {
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(queueName.getBytes(StandardCharsets.UTF_8), groupName, consumerName,
+                        RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(id)));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        return records.stream()
+                .map(record -> record.<String, Object, Object>deserialize(StringRedisSerializer.UTF_8,
+                        StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8))
+                .collect(Collectors.toList());
+    }
+
+    private void deadLetter(MapRecord<String, Object, Object> record, String consumerName, long deliveries) {
+        Map<Object, Object> value = new HashMap<>(record.getValue());
+        value.put("sourceId", record.getId().getValue());
+        value.put("consumer", consumerName);
+        value.put("deliveries", String.valueOf(deliveries));
+        // XADD to dead letter stream first, then ACK, a crash in between only duplicates the dead letter
+        stringRedisTemplate.opsForStream().add(RedisConstants.STREAM_ORDERS_DLQ_KEY, value);
+        stringRedisTemplate.opsForStream().acknowledge(RedisConstants.STREAM_ORDERS_KEY,
+                RedisConstants.STREAM_ORDERS_GROUP, record.getId());
+        deadLettered.incrementAndGet();
+        orderPipelineMetrics.error("dead_letter");
+        seckillOrderStatus.mark(RedisStreamOrderQueue.toVoucherOrders(record), SeckillOrderStatus.FAILED);
+        log.error("order {} moved to dead letter stream after {} deliveries", record.getId(), deliveries);
+    }
+
+    /**
+     * Move orders of a local queue which can not be delivered again to the dead letter stream, they keep their
+     * redis stock as the dead letters of stream.orders do.
+     */
+    public void deadLetter(List<VoucherOrder> voucherOrders, String source) {
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            Map<Object, Object> value = new HashMap<>();
+            value.put("id", voucherOrder.getId().toString());
+            value.put("userId", voucherOrder.getUserId().toString());
+            value.put("voucherId", voucherOrder.getVoucherId().toString());
+            value.put("source", source);
+            stringRedisTemplate.opsForStream().add(RedisConstants.STREAM_ORDERS_DLQ_KEY, value);
+            deadLettered.incrementAndGet();
+            orderPipelineMetrics.error("dead_letter");
+            log.error("order {} of {} moved to dead letter stream", voucherOrder.getId(), source);
+        }
+        seckillOrderStatus.mark(voucherOrders, SeckillOrderStatus.FAILED);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("pending", pending.get());
+        stats.put("claimed", claimed.get());
+        stats.put("recovered", recovered.get());
+        stats.put("deadLettered", deadLettered.get());
+        stats.put("consumersRemoved", consumersRemoved.get());
+        stats.put("deadLetterLength", stringRedisTemplate.opsForStream().size(RedisConstants.STREAM_ORDERS_DLQ_KEY));
+        return stats;
+    }
+}
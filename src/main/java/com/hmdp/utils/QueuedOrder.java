@@ -0,0 +1,15 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class QueuedOrder {
+    private final VoucherOrder voucherOrder;
+    // position in the queue, used to acknowledge
+    private final Object id;
+    // epoch millis when the order was enqueued
+    private final long enqueuedAt;
+}
@@ -11,6 +11,15 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shopType";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 10L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_SHOP_CHANNEL = "bloom:shop:changes";
+    public static final String BLOOM_SHOP_SEQ_KEY = "bloom:shop:seq";
     public static final Long CACHE_SHOP_TYPE_TTL = 60L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
@@ -20,8 +29,20 @@ public class RedisConstants {
     public static final Long LOCK_TTL = 10L;
 
     public static final String INCR_KEY_PREFIX = "icr:";
+    public static final String ID_WORKER_KEY = "idworker:worker:";
+    public static final String ID_WORKER_LAST_KEY = "idworker:last:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_ADMISSION_CONF_KEY = "seckill:admission:conf:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESERVATION_KEY = "seckill:reservation:";
+    public static final String SECKILL_RESERVATION_CURSOR_KEY = "seckill:reservation:cursor";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String STREAM_ORDERS_KEY = "stream.orders";
+    public static final String STREAM_ORDERS_GROUP = "g1";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FOLLOW_KEY = "follow:";
     public static final String FEED_KEY = "feed:";
@@ -2,10 +2,11 @@ package com.hmdp.utils;
 
 import lombok.Data;
 
-import java.time.LocalDateTime;
-
 @Data
 public class RedisData {
-    private LocalDateTime expireTime;
+    // logical expiration, epoch millis
+    private long expireAt;
+    // millis the last load took, scales the early refresh
+    private int loadMillis;
     private Object data;
 }
@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
@@ -7,19 +9,41 @@ import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
     private static final long INIT_TIME_STAMP = LocalDateTime.of(2022, 1, 1, 0,0,0)
             .toEpochSecond(ZoneOffset.UTC);
 
     private static final int MOVE_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Value("${hmdp.id-worker.segment-enabled:false}")
+    private boolean segmentEnabled;
+    @Value("${hmdp.id-worker.segment-size:1000}")
+    private int segmentSize;
+
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    @Override
     public long nextId(String keyPrefix) {
+        if (segmentEnabled) {
+            return nextIdBySegment(keyPrefix);
+        }
         // 1. generate timestamp
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -27,11 +51,104 @@ public class RedisIdWorker {
 
         // 2. generate series number (key = prefix + date)
         // 2.1 get now date
-        String date = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+        String date = now.format(DATE_FORMATTER);
         Long number = stringRedisTemplate.opsForValue().increment(RedisConstants.INCR_KEY_PREFIX + keyPrefix + date);
 
         // 3. concat and return
         return timeStamp << MOVE_BITS | number;
     }
 
+    /*
+     * Segment mode:
+     *   lease a block of series numbers by INCRBY and hand them out locally, so most ids need no redis call.
+     *   The numbers of a block are unique among all nodes because the block is taken from the same key as nextId,
+     *   and a block is only used on the date it was leased for.
+     */
+    public long nextIdBySegment(String keyPrefix) {
+        // 1. generate timestamp
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - INIT_TIME_STAMP;
+
+        // 2. take series number from the segment of today
+        String date = now.format(DATE_FORMATTER);
+        long number = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextNumber(date);
+
+        // 3. concat and return
+        return timeStamp << MOVE_BITS | number;
+    }
+
+    private Segment lease(String keyPrefix, String date) {
+        // INCRBY returns the last number of the block
+        Long max = stringRedisTemplate.opsForValue().increment(RedisConstants.INCR_KEY_PREFIX + keyPrefix + date, segmentSize);
+        return new Segment(date, max - segmentSize + 1, max);
+    }
+
+    private static class Segment {
+        final String date;
+        final long max;
+        // prefetch the next block when 80% of this one is used
+        final long prefetchAt;
+        final AtomicLong cursor;
+
+        Segment(String date, long min, long max) {
+            this.date = date;
+            this.max = max;
+            this.prefetchAt = min + (max - min + 1) * 4 / 5;
+            this.cursor = new AtomicLong(min);
+        }
+    }
+
+    private class SegmentBuffer {
+        final String keyPrefix;
+        volatile Segment current;
+        CompletableFuture<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long nextNumber(String date) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(date)) {
+                    long number = segment.cursor.getAndIncrement();
+                    if (number <= segment.max) {
+                        if (number == segment.prefetchAt) {
+                            prefetch(date);
+                        }
+                        return number;
+                    }
+                }
+                // exhausted, or the day rolled over
+                switchSegment(segment, date);
+            }
+        }
+
+        private synchronized void prefetch(String date) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, date), SEGMENT_PREFETCH_EXECUTOR);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, String date) {
+            if (current != exhausted) {
+                // another thread has switched
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.join();
+                } catch (Exception e) {
+                    log.error("prefetch id segment fail: ", e);
+                }
+                next = null;
+            }
+            if (segment == null || !segment.date.equals(date)) {
+                // a block of yesterday is dropped, its numbers could collide with today's
+                segment = lease(keyPrefix, date);
+            }
+            current = segment;
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *     Orders in a redis stream read by a consumer group. seckill.lua adds the order to stream.orders in the same
+ *     script as the stock check, an order failing in a consumer stays in the pending list until
+ *     OrderStreamRecovery claims it.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+public class RedisStreamOrderQueue implements OrderQueue {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String queueName;
+    private final String groupName;
+
+    public RedisStreamOrderQueue(StringRedisTemplate stringRedisTemplate, String queueName, String groupName) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.queueName = queueName;
+        this.groupName = groupName;
+        createGroupIfAbsent();
+    }
+
+    private void createGroupIfAbsent() {
+        // XGROUP CREATE queueName groupName 0 MKSTREAM, the group of an existing stream is kept
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.xGroupCreate(
+                    queueName.getBytes(StandardCharsets.UTF_8), groupName, ReadOffset.from("0"), true));
+            log.info("created consumer group {} of {}", groupName, queueName);
+        } catch (Exception e) {
+            if (!String.valueOf(e.getMessage()).contains("BUSYGROUP")
+                    && !(e.getCause() != null && String.valueOf(e.getCause().getMessage()).contains("BUSYGROUP"))) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public boolean enqueuedByScript() {
+        return true;
+    }
+
+    @Override
+    public boolean offer(VoucherOrder voucherOrder) {
+        Map<String, String> value = new HashMap<>(3);
+        value.put("userId", voucherOrder.getUserId().toString());
+        value.put("voucherId", voucherOrder.getVoucherId().toString());
+        value.put("id", voucherOrder.getId().toString());
+        return stringRedisTemplate.opsForStream().add(queueName, value) != null;
+    }
+
+    @Override
+    public boolean offerAll(List<VoucherOrder> voucherOrders) {
+        // one message for the bundle, as seckill_batch.lua adds it
+        Map<String, String> value = new HashMap<>(3);
+        value.put("userId", voucherOrders.get(0).getUserId().toString());
+        value.put("voucherIds", voucherOrders.stream().map(voucherOrder -> voucherOrder.getVoucherId().toString())
+                .collect(Collectors.joining(",")));
+        value.put("ids", voucherOrders.stream().map(voucherOrder -> voucherOrder.getId().toString())
+                .collect(Collectors.joining(",")));
+        return stringRedisTemplate.opsForStream().add(queueName, value) != null;
+    }
+
+    @Override
+    public List<QueuedOrder> take(String consumerName, int maxCount, Duration timeout) {
+        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                Consumer.from(groupName, consumerName),
+                StreamReadOptions.empty().count(maxCount).block(timeout),
+                StreamOffset.create(queueName, ReadOffset.lastConsumed())
+        );
+        if (list == null || list.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<QueuedOrder> orders = new ArrayList<>(list.size());
+        for (MapRecord<String, Object, Object> record : list) {
+            // the stream id is the redis time of XADD in millis
+            for (VoucherOrder voucherOrder : toVoucherOrders(record)) {
+                orders.add(new QueuedOrder(voucherOrder, record.getId(), record.getId().getTimestamp()));
+            }
+        }
+        return orders;
+    }
+
+    @Override
+    public void ack(String consumerName, List<QueuedOrder> orders) {
+        // ACK the whole batch at once
+        // orders of a bundle share one message
+        RecordId[] recordIds = orders.stream().map(o -> (RecordId) o.getId()).distinct().toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(queueName, groupName, recordIds);
+    }
+
+    @Override
+    public void retry(String consumerName, List<QueuedOrder> orders) {
+        // left in the pending list, claimed by OrderStreamRecovery after the idle threshold
+    }
+
+    @Override
+    public long size() {
+        Long size = stringRedisTemplate.opsForStream().size(queueName);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * @return the order of a message of seckill.lua, or all orders of a bundle message of seckill_batch.lua
+     *         (fields voucherIds and ids, comma separated)
+     */
+    public static List<VoucherOrder> toVoucherOrders(MapRecord<String, Object, Object> entries) {
+        Map<Object, Object> value = entries.getValue();
+        Object ids = value.get("ids");
+        if (ids == null) {
+            return Collections.singletonList(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+        }
+        Long userId = Long.valueOf(value.get("userId").toString());
+        String[] orderIds = ids.toString().split(",");
+        String[] voucherIds = value.get("voucherIds").toString().split(",");
+        List<VoucherOrder> voucherOrders = new ArrayList<>(orderIds.length);
+        for (int i = 0; i < orderIds.length; i++) {
+            voucherOrders.add(new VoucherOrder().setId(Long.valueOf(orderIds[i]))
+                    .setUserId(userId).setVoucherId(Long.valueOf(voucherIds[i])));
+        }
+        return voucherOrders;
+    }
+}
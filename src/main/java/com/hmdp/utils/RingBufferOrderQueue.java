@@ -0,0 +1,208 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ *     Bounded lock-free ring buffer of this node, many producers and many consumers.
+ *     Slots are preallocated as parallel arrays of primitives, so offering an order allocates nothing.
+ *     Each slot has a sequence telling whose turn it is: pos when free for the producer of pos, pos + 1 when
+ *     filled for the consumer of pos, pos + capacity when free again for the next lap.
+ *     Orders are gone once taken, an order in the queue or in a consumer is lost if the node crashes.
+ *     An order handed back by retry while the ring is full goes to the overflow handler, it holds redis stock
+ *     already and must not be dropped, and a consumer waiting for room could wait for itself.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+public class RingBufferOrderQueue implements OrderQueue {
+
+    // consumers wait for new orders by parking this long, so an idle queue does not burn a cpu
+    private static final long IDLE_PARK_NANOS = 50_000;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] orderIds;
+    private final long[] userIds;
+    private final long[] voucherIds;
+    private final long[] enqueuedAts;
+    // next position to fill
+    private final AtomicLong tail = new AtomicLong();
+    // next position to take
+    private final AtomicLong head = new AtomicLong();
+    // takes the orders retry could not put back
+    private final Consumer<List<VoucherOrder>> overflow;
+
+    public RingBufferOrderQueue(int capacity, Consumer<List<VoucherOrder>> overflow) {
+        this.overflow = overflow;
+        // power of two, so the slot of a position is a mask
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.orderIds = new long[size];
+        this.userIds = new long[size];
+        this.voucherIds = new long[size];
+        this.enqueuedAts = new long[size];
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean enqueuedByScript() {
+        return false;
+    }
+
+    @Override
+    public boolean offer(VoucherOrder voucherOrder) {
+        // 1. claim a position whose slot is free
+        long pos;
+        int slot;
+        while (true) {
+            pos = tail.get();
+            slot = (int) (pos & mask);
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // the consumer of the last lap has not taken it, full
+                return false;
+            }
+            // else another producer claimed it, try the next position
+        }
+        // 2. fill the slot, then publish it
+        publish(pos, voucherOrder);
+        return true;
+    }
+
+    @Override
+    public boolean offerAll(List<VoucherOrder> voucherOrders) {
+        int n = voucherOrders.size();
+        if (n > capacity) {
+            return false;
+        }
+        // 1. claim n positions at once, only if the slots of all of them are free
+        long pos;
+        claim:
+        while (true) {
+            pos = tail.get();
+            for (int i = 0; i < n; i++) {
+                long diff = sequences.get((int) ((pos + i) & mask)) - (pos + i);
+                if (diff < 0) {
+                    // full, none of them is taken
+                    return false;
+                }
+                if (diff > 0) {
+                    // another producer claimed it, start over from the new tail
+                    continue claim;
+                }
+            }
+            if (tail.compareAndSet(pos, pos + n)) {
+                break;
+            }
+        }
+        // 2. fill and publish them in order
+        for (int i = 0; i < n; i++) {
+            publish(pos + i, voucherOrders.get(i));
+        }
+        return true;
+    }
+
+    // fill the slot of a claimed position, then publish it by the volatile write of the sequence
+    private void publish(long pos, VoucherOrder voucherOrder) {
+        int slot = (int) (pos & mask);
+        orderIds[slot] = voucherOrder.getId();
+        userIds[slot] = voucherOrder.getUserId();
+        voucherIds[slot] = voucherOrder.getVoucherId();
+        enqueuedAts[slot] = System.currentTimeMillis();
+        sequences.set(slot, pos + 1);
+    }
+
+    private QueuedOrder poll() {
+        // 1. claim a position whose slot is filled
+        long pos;
+        int slot;
+        while (true) {
+            pos = head.get();
+            slot = (int) (pos & mask);
+            long diff = sequences.get(slot) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // not filled yet, empty
+                return null;
+            }
+        }
+        // 2. copy the slot out, then free it for the next lap
+        VoucherOrder voucherOrder = new VoucherOrder()
+                .setId(orderIds[slot])
+                .setUserId(userIds[slot])
+                .setVoucherId(voucherIds[slot]);
+        long enqueuedAt = enqueuedAts[slot];
+        sequences.set(slot, pos + capacity);
+        return new QueuedOrder(voucherOrder, pos, enqueuedAt);
+    }
+
+    @Override
+    public List<QueuedOrder> take(String consumerName, int maxCount, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        QueuedOrder first;
+        while ((first = poll()) == null) {
+            if (System.nanoTime() >= deadline) {
+                return Collections.emptyList();
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        List<QueuedOrder> orders = new ArrayList<>(maxCount);
+        orders.add(first);
+        QueuedOrder next;
+        while (orders.size() < maxCount && (next = poll()) != null) {
+            orders.add(next);
+        }
+        return orders;
+    }
+
+    @Override
+    public void ack(String consumerName, List<QueuedOrder> orders) {
+        // the slots are freed when taken
+    }
+
+    @Override
+    public void retry(String consumerName, List<QueuedOrder> orders) {
+        List<VoucherOrder> overflowed = new ArrayList<>();
+        for (QueuedOrder order : orders) {
+            if (!offer(order.getVoucherOrder())) {
+                overflowed.add(order.getVoucherOrder());
+            }
+        }
+        if (!overflowed.isEmpty()) {
+            log.error("ring buffer full, {} orders handed to the overflow handler", overflowed.size());
+            overflow.accept(overflowed);
+        }
+    }
+
+    @Override
+    public long size() {
+        return Math.max(tail.get() - head.get(), 0);
+    }
+}
@@ -0,0 +1,275 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.SeckillAdmissionDTO;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ *     Admission control in front of seckill.lua. Each node keeps a local token bucket per voucher, and fills it by
+ *     leasing a batch of permits from a redis sliding window shared by all nodes (admission.lua), so most requests
+ *     are admitted or shed without a redis call. Requests beyond the capacity are shed immediately.
+ *     Taking a local token is lock free, one thread at a time leases the next batch and the threads without a token
+ *     wait for that lease instead of calling redis themselves.
+ *     The capacity can be tuned per voucher in the hash seckill:admission:conf:{voucherId}.
+ *     Admitted and shed requests are the counter seckill.admission.requests{voucher, result}.
+ *     A gate is only created for a voucher with seckill meta, requests for other ids are rejected, so made-up ids
+ *     can not grow the gates and the meters. Gates idle for idle-ms are removed with their meters.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Component
+public class SeckillAdmission {
+
+    private static final DefaultRedisScript<Long> ADMISSION_SCRIPT;
+
+    static {
+        ADMISSION_SCRIPT = new DefaultRedisScript<>();
+        ADMISSION_SCRIPT.setLocation(new ClassPathResource("admission.lua"));
+        ADMISSION_SCRIPT.setResultType(Long.class);
+    }
+
+    // per voucher configuration is reloaded from redis after this
+    private static final long CONF_REFRESH_MS = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private SeckillMetaCache seckillMetaCache;
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.admission.permits-per-window:2000}")
+    private long defaultPermitsPerWindow;
+    @Value("${hmdp.seckill.admission.window-ms:1000}")
+    private long defaultWindowMs;
+    @Value("${hmdp.seckill.admission.lease-batch:20}")
+    private long leaseBatch;
+    @Value("${hmdp.seckill.admission.idle-ms:600000}")
+    private long idleMs;
+
+    private final Map<Long, VoucherGate> gates = new ConcurrentHashMap<>();
+
+    public boolean tryAdmit(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+        VoucherGate gate = gate(voucherId);
+        if (gate == null) {
+            // not a seckill voucher
+            return false;
+        }
+        gate.usedAt = System.currentTimeMillis();
+        if (gate.tryAcquire()) {
+            gate.admitted.increment();
+            return true;
+        }
+        gate.shed.increment();
+        return false;
+    }
+
+    /**
+     * @return false if a value is not positive, nothing is changed then
+     */
+    public boolean configure(Long voucherId, SeckillAdmissionDTO conf) {
+        if ((conf.getPermitsPerWindow() != null && conf.getPermitsPerWindow() <= 0)
+                || (conf.getWindowMs() != null && conf.getWindowMs() <= 0)) {
+            return false;
+        }
+        Map<String, String> fields = new HashMap<>(2);
+        if (conf.getPermitsPerWindow() != null) {
+            fields.put("permitsPerWindow", conf.getPermitsPerWindow().toString());
+        }
+        if (conf.getWindowMs() != null) {
+            fields.put("windowMs", conf.getWindowMs().toString());
+        }
+        if (fields.isEmpty()) {
+            return true;
+        }
+        stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_ADMISSION_CONF_KEY + voucherId, fields);
+        // this node takes it at once, the others within the refresh interval
+        VoucherGate gate = gates.get(voucherId);
+        if (gate != null) {
+            gate.confLoadedAt = 0;
+        }
+        return true;
+    }
+
+    /**
+     * @return null if the voucher is not a seckill voucher
+     */
+    public SeckillAdmissionDTO stats(Long voucherId) {
+        VoucherGate gate = gate(voucherId);
+        if (gate == null) {
+            return null;
+        }
+        gate.refreshConf(System.currentTimeMillis());
+        SeckillAdmissionDTO stats = new SeckillAdmissionDTO();
+        stats.setPermitsPerWindow(gate.permitsPerWindow);
+        stats.setWindowMs(gate.windowMs);
+        stats.setAdmitted((long) gate.admitted.count());
+        stats.setShed((long) gate.shed.count());
+        return stats;
+    }
+
+    private VoucherGate gate(Long voucherId) {
+        VoucherGate gate = gates.get(voucherId);
+        if (gate != null) {
+            return gate;
+        }
+        if (seckillMetaCache.get(voucherId) == null) {
+            return null;
+        }
+        return gates.computeIfAbsent(voucherId, VoucherGate::new);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.admission.sweep-ms:60000}")
+    public void removeIdleGates() {
+        long oldest = System.currentTimeMillis() - idleMs;
+        for (VoucherGate gate : gates.values()) {
+            if (gate.usedAt < oldest && gates.remove(gate.voucherId, gate)) {
+                // a request still holding the gate counts into detached meters, a new gate registers new ones
+                meterRegistry.remove(gate.admitted);
+                meterRegistry.remove(gate.shed);
+            }
+        }
+    }
+
+    // tokens leased from the redis window, only valid in the window they were leased for
+    private static class Lease {
+        final AtomicLong tokens;
+        final long leasedAt;
+
+        Lease(long tokens, long leasedAt) {
+            this.tokens = new AtomicLong(tokens);
+            this.leasedAt = leasedAt;
+        }
+
+        boolean take(long now, long windowMs) {
+            if (now - leasedAt >= windowMs) {
+                return false;
+            }
+            long left;
+            do {
+                left = tokens.get();
+                if (left <= 0) {
+                    return false;
+                }
+            } while (!tokens.compareAndSet(left, left - 1));
+            return true;
+        }
+    }
+
+    private class VoucherGate {
+        final Long voucherId;
+        final Counter admitted;
+        final Counter shed;
+
+        volatile long permitsPerWindow;
+        volatile long windowMs;
+        volatile long confLoadedAt;
+        // last request, an idle gate is removed
+        volatile long usedAt = System.currentTimeMillis();
+
+        // local token bucket, replaced as a whole by the next lease
+        volatile Lease lease = new Lease(0, 0);
+        // the redis window is used up, do not ask again before then
+        volatile long deniedUntil;
+        // the lease in flight, threads without a token wait for it instead of leasing again
+        final AtomicReference<CompletableFuture<Void>> leasing = new AtomicReference<>();
+
+        VoucherGate(Long voucherId) {
+            this.voucherId = voucherId;
+            this.admitted = Counter.builder("seckill.admission.requests")
+                    .tag("voucher", voucherId.toString()).tag("result", "admitted").register(meterRegistry);
+            this.shed = Counter.builder("seckill.admission.requests")
+                    .tag("voucher", voucherId.toString()).tag("result", "shed").register(meterRegistry);
+        }
+
+        boolean tryAcquire() {
+            long now = System.currentTimeMillis();
+            refreshConf(now);
+            // 1. take a local token, no lock and no redis call
+            if (lease.take(now, windowMs)) {
+                return true;
+            }
+            // 2. shed without redis call while the redis window is used up
+            if (now < deniedUntil) {
+                return false;
+            }
+            // 3. one thread leases a batch of permits from the redis window, the others wait for it and take from it
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (!leasing.compareAndSet(null, future)) {
+                CompletableFuture<Void> inFlight = leasing.get();
+                if (inFlight != null) {
+                    try {
+                        inFlight.get(windowMs, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    } catch (ExecutionException | TimeoutException e) {
+                        return false;
+                    }
+                }
+                return lease.take(System.currentTimeMillis(), windowMs);
+            }
+            try {
+                Long granted = stringRedisTemplate.execute(ADMISSION_SCRIPT, Collections.emptyList(),
+                        voucherId.toString(), String.valueOf(leaseBatch),
+                        String.valueOf(permitsPerWindow), String.valueOf(windowMs));
+                if (granted == null || granted <= 0) {
+                    deniedUntil = now + Math.max(windowMs / 10, 1);
+                    return false;
+                }
+                lease = new Lease(granted - 1, now);
+                return true;
+            } finally {
+                leasing.set(null);
+                future.complete(null);
+            }
+        }
+
+        void refreshConf(long now) {
+            if (now - confLoadedAt < CONF_REFRESH_MS) {
+                return;
+            }
+            List<Object> conf = stringRedisTemplate.opsForHash().multiGet(
+                    RedisConstants.SECKILL_ADMISSION_CONF_KEY + voucherId, Arrays.asList("permitsPerWindow", "windowMs"));
+            permitsPerWindow = positiveOr(conf.get(0), defaultPermitsPerWindow);
+            windowMs = positiveOr(conf.get(1), defaultWindowMs);
+            confLoadedAt = now;
+        }
+    }
+
+    // a value written to the hash by hand is used only if positive
+    private static long positiveOr(Object value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        long parsed = Long.parseLong(value.toString());
+        return parsed > 0 ? parsed : defaultValue;
+    }
+}
@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * <p>
+ *     Seckill information of a voucher, the hash seckill:meta:{voucherId}: the number of stock buckets and the sale
+ *     window in epoch millis. A sharded voucher keeps the stock and the order set of a bucket under one hash tag,
+ *     seckill:stock:{voucherId:bucket} and seckill:order:{voucherId:bucket}, so a script on a bucket declares keys of
+ *     one slot. A voucher of one bucket keeps seckill:stock:voucherId and seckill:order:voucherId.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Getter
+@AllArgsConstructor
+public class SeckillMeta {
+    private final Long voucherId;
+    private final int buckets;
+    // epoch millis, null if not limited
+    private final Long begin;
+    private final Long end;
+
+    public static SeckillMeta single(Long voucherId) {
+        return new SeckillMeta(voucherId, 1, null, null);
+    }
+
+    public boolean isSharded() {
+        return buckets > 1;
+    }
+
+    /**
+     * The user always belongs to the same bucket, so the duplicate check on its order set is exact.
+     */
+    public int home(Long userId) {
+        return (int) (userId % buckets);
+    }
+
+    public String stockKey(int bucket) {
+        return key(RedisConstants.SECKILL_STOCK_KEY, bucket);
+    }
+
+    public String orderKey(int bucket) {
+        return key(RedisConstants.SECKILL_ORDER_KEY, bucket);
+    }
+
+    private String key(String prefix, int bucket) {
+        if (!isSharded()) {
+            return prefix + voucherId;
+        }
+        return prefix + "{" + voucherId + ":" + bucket + "}";
+    }
+}
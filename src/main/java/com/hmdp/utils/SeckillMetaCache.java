@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Per node cache of the seckill meta of vouchers, so a seckill request routes the user to the home bucket and
+ *     passes the sale window without reading the hash in the script. Bounded by size and a short ttl, a voucher
+ *     without meta is cached as unknown too, so made-up ids cost one redis read per ttl at most.
+ *     The meta is written once when the voucher is added, other nodes see a new voucher within the ttl.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Component
+public class SeckillMetaCache {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.meta.max-size:10000}")
+    private long maxSize;
+    @Value("${hmdp.seckill.meta.ttl-ms:10000}")
+    private long ttlMs;
+
+    private Cache<Long, Optional<SeckillMeta>> cache;
+
+    @PostConstruct
+    private void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * @return null if the voucher is not a seckill voucher
+     */
+    public SeckillMeta get(Long voucherId) {
+        return cache.get(voucherId, this::load).orElse(null);
+    }
+
+    /**
+     * For paths giving stock back, a voucher without meta keeps a single stock key.
+     */
+    public SeckillMeta getOrSingle(Long voucherId) {
+        SeckillMeta meta = get(voucherId);
+        return meta == null ? SeckillMeta.single(voucherId) : meta;
+    }
+
+    public void invalidate(Long voucherId) {
+        cache.invalidate(voucherId);
+    }
+
+    private Optional<SeckillMeta> load(Long voucherId) {
+        List<Object> fields = stringRedisTemplate.opsForHash().multiGet(RedisConstants.SECKILL_META_KEY + voucherId,
+                Arrays.asList("buckets", "begin", "end"));
+        if (fields.get(0) == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new SeckillMeta(voucherId, Math.max(Integer.parseInt(fields.get(0).toString()), 1),
+                toLong(fields.get(1)), toLong(fields.get(2))));
+    }
+
+    private static Long toLong(Object value) {
+        return value == null ? null : Long.valueOf(value.toString());
+    }
+}
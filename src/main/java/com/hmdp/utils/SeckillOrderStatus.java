@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ *     Final status of async seckill orders, kept in redis so polling clients never query mysql during a sale.
+ *     One string per order, order:status:{orderId} = "{status}:{userId}", with a ttl.
+ *     PENDING is written by seckill.lua together with the order message, the stream consumer writes PERSISTED and
+ *     FAILED, a payment PAID and the reservation wheel EXPIRED.
+ *     A status only moves forward (status.lua), PENDING, then PERSISTED, then one of the final FAILED, PAID and
+ *     EXPIRED, so a redelivered order or a late consumer never overwrites a later status.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Component
+public class SeckillOrderStatus {
+
+    public static final String PENDING = "0";
+    public static final String PERSISTED = "1";
+    public static final String FAILED = "2";
+    public static final String PAID = "3";
+    public static final String EXPIRED = "4";
+
+    private static final String[] STATUS_NAMES = {"PENDING", "PERSISTED", "FAILED", "PAID", "EXPIRED"};
+
+    private static final DefaultRedisScript<Long> STATUS_SCRIPT;
+
+    static {
+        STATUS_SCRIPT = new DefaultRedisScript<>();
+        STATUS_SCRIPT.setLocation(new ClassPathResource("status.lua"));
+        STATUS_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.order-status-ttl-seconds:1800}")
+    private long ttlSeconds;
+
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * Mark the orders in one script call, an order already at the status or beyond it is left alone.
+     */
+    public void mark(List<VoucherOrder> voucherOrders, String status) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<>(voucherOrders.size() * 2 + 2);
+        args.add(String.valueOf(ttlSeconds));
+        args.add(status);
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            args.add(voucherOrder.getId().toString());
+            args.add(voucherOrder.getUserId().toString());
+        }
+        stringRedisTemplate.execute(STATUS_SCRIPT, Collections.emptyList(), args.toArray());
+    }
+
+    public void mark(Long orderId, Long userId, String status) {
+        stringRedisTemplate.execute(STATUS_SCRIPT, Collections.emptyList(),
+                String.valueOf(ttlSeconds), status, orderId.toString(), userId.toString());
+    }
+
+    /**
+     * @return status name of the order of the user, null if unknown or expired
+     */
+    public String query(Long orderId, Long userId) {
+        String value = stringRedisTemplate.opsForValue().get(RedisConstants.ORDER_STATUS_KEY + orderId);
+        if (value == null) {
+            return null;
+        }
+        String[] statusAndUser = value.split(":");
+        if (!statusAndUser[1].equals(userId.toString())) {
+            // not the order of the user
+            return null;
+        }
+        return name(statusAndUser[0]);
+    }
+
+    public static String name(String status) {
+        return STATUS_NAMES[Integer.parseInt(status)];
+    }
+}
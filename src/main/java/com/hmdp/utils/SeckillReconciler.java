@@ -0,0 +1,358 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.SeckillReconcileDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *     Reconciliation of seckill stock and orders between redis and mysql.
+ *     1. stock + orders is the initial stock on both sides, in-flight orders move one unit on each side,
+ *        so the sums must be equal at any time (reconcile.lua takes each bucket of the redis side in one step,
+ *        stock moved between buckets in between is a drift of one run only).
+ *     2. orders of mysql are streamed in (voucher_id, user_id) order and checked against the redis order sets.
+ *     Cancelled orders (status 4, expired reservations) have given their stock back and are left out on both sides.
+ *     3. members of the redis order sets are scanned by SSCAN and checked against mysql. A user only in redis may
+ *        still be in the stream, so it is confirmed only if seen again in the next run with the stream drained.
+ *     Memory is bounded by the page size and the number of suspects, and the cost by a pause after each page.
+ *     Mismatches are reported, and repaired only if enabled: mysql is the truth, a missing user is added to
+ *     the redis order set, a confirmed lost order gives its stock back in redis (release.lua).
+ *     Reports, suspects and drifts are kept only for vouchers still checked, they are dropped once the sale ended
+ *     beyond retention-hours or the report is older than that (checked by another node since).
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    private static final DefaultRedisScript<List> RECONCILE_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RECONCILE_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_SCRIPT.setLocation(new ClassPathResource("reconcile.lua"));
+        RECONCILE_SCRIPT.setResultType(List.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillMetaCache seckillMetaCache;
+    @Resource
+    private OrderQueue orderQueue;
+
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+    @Value("${hmdp.seckill.reconcile.page-size:500}")
+    private int pageSize;
+    @Value("${hmdp.seckill.reconcile.pause-ms:20}")
+    private long pauseMs;
+    @Value("${hmdp.seckill.reconcile.retention-hours:24}")
+    private long retentionHours;
+    @Value("${hmdp.seckill.reconcile.max-suspects:10000}")
+    private int maxSuspects;
+
+    private final Map<Long, SeckillReconcileDTO> reports = new ConcurrentHashMap<>();
+    // users only in redis in the last run, per voucher
+    private final Map<Long, Set<Long>> suspects = new ConcurrentHashMap<>();
+    // drift of the last run, per voucher
+    private final Map<Long, Long> drifts = new ConcurrentHashMap<>();
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}")
+    public void reconcileAll() {
+        if (!enabled) {
+            return;
+        }
+        // one node at a time
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + "seckill:reconcile");
+        if (!lock.tryLock()) {
+            prune(null);
+            return;
+        }
+        try {
+            List<Long> voucherIds = scanActiveVouchers();
+            for (Long voucherId : voucherIds) {
+                try {
+                    reports.put(voucherId, reconcile(voucherId));
+                } catch (Exception e) {
+                    log.error("reconcile voucher {} fail: ", voucherId, e);
+                }
+            }
+            prune(new HashSet<>(voucherIds));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // active: vouchers checked in this run, null if another node runs it
+    private void prune(Set<Long> active) {
+        LocalDateTime oldest = LocalDateTime.now().minusHours(retentionHours);
+        reports.values().removeIf(report -> report.getCheckTime().isBefore(oldest));
+        if (active != null) {
+            reports.keySet().retainAll(active);
+        }
+        suspects.keySet().retainAll(reports.keySet());
+        drifts.keySet().retainAll(reports.keySet());
+    }
+
+    public SeckillReconcileDTO lastReport(Long voucherId) {
+        return reports.get(voucherId);
+    }
+
+    public SeckillReconcileDTO reconcile(Long voucherId) {
+        SeckillReconcileDTO report = new SeckillReconcileDTO();
+        report.setVoucherId(voucherId);
+        report.setCheckTime(LocalDateTime.now());
+
+        // 1. stock conservation, bucket by bucket
+        SeckillMeta meta = seckillMetaCache.getOrSingle(voucherId);
+        long redisStock = 0;
+        long redisOrders = 0;
+        for (int i = 0; i < meta.getBuckets(); i++) {
+            List<Long> snapshot = stringRedisTemplate.execute(RECONCILE_SCRIPT,
+                    Arrays.asList(meta.stockKey(i), meta.orderKey(i)));
+            redisStock += snapshot.get(0);
+            redisOrders += snapshot.get(1);
+        }
+        report.setRedisStock(redisStock);
+        report.setRedisOrders(redisOrders);
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (seckillVoucher == null) {
+            log.warn("seckill voucher {} is in redis only", voucherId);
+            return report;
+        }
+        report.setMysqlStock(seckillVoucher.getStock().longValue());
+        report.setMysqlOrders((long) voucherOrderService.query().eq("voucher_id", voucherId).ne("status", 4).count());
+        long drift = report.getRedisStock() + report.getRedisOrders() - report.getMysqlStock() - report.getMysqlOrders();
+        report.setDrift(drift);
+        // stock and orders of mysql are two reads, a drift is reported only if it stays
+        Long lastDrift = drifts.put(voucherId, drift);
+        if (drift != 0 && lastDrift != null && lastDrift == drift) {
+            log.error("seckill voucher {} drift {}: redis stock {} orders {}, mysql stock {} orders {}", voucherId,
+                    drift, report.getRedisStock(), report.getRedisOrders(), report.getMysqlStock(), report.getMysqlOrders());
+        }
+
+        Progress progress = new Progress(meta);
+        // 2. orders of mysql missing in redis
+        checkMysqlOrders(progress);
+        // 3. orders of redis missing in mysql
+        progress.drained = streamDrained();
+        progress.lastSuspects = suspects.getOrDefault(voucherId, Collections.emptySet());
+        for (int i = 0; i < meta.getBuckets(); i++) {
+            checkRedisOrders(meta.orderKey(i), progress);
+        }
+        suspects.put(voucherId, progress.newSuspects);
+        if (progress.released > 0) {
+            // stock is back, requests for the voucher must run the script again
+            seckillSoldOutRegistry.clear(voucherId);
+        }
+
+        report.setMissingInRedis(progress.missingInRedis);
+        report.setMissingInMysql(progress.missingInMysql);
+        report.setRepaired(progress.repaired);
+        if (progress.missingInRedis > 0 || progress.missingInMysql > 0) {
+            log.error("seckill voucher {} orders missing in redis {}, missing in mysql {}, repaired {}", voucherId,
+                    progress.missingInRedis, progress.missingInMysql, progress.repaired);
+        }
+        return report;
+    }
+
+    private void checkMysqlOrders(Progress progress) {
+        long lastUserId = 0;
+        while (true) {
+            // keyset paging on (voucher_id, user_id), no offset
+            List<Long> userIds = voucherOrderService.query().select("user_id")
+                    .eq("voucher_id", progress.voucherId).ne("status", 4).gt("user_id", lastUserId)
+                    .orderByAsc("user_id").last("limit " + pageSize).list()
+                    .stream().map(VoucherOrder::getUserId).collect(Collectors.toList());
+            if (userIds.isEmpty()) {
+                return;
+            }
+            // one round trip for the page
+            List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Long userId : userIds) {
+                    stringConnection.sIsMember(progress.meta.orderKey(progress.meta.home(userId)), userId.toString());
+                }
+                return null;
+            });
+            for (int i = 0; i < userIds.size(); i++) {
+                if (Boolean.TRUE.equals(members.get(i))) {
+                    continue;
+                }
+                Long userId = userIds.get(i);
+                progress.missingInRedis++;
+                if (repair) {
+                    // the user has ordered, must not order again
+                    stringRedisTemplate.opsForSet().add(progress.meta.orderKey(progress.meta.home(userId)),
+                            userId.toString());
+                    progress.repaired++;
+                }
+            }
+            lastUserId = userIds.get(userIds.size() - 1);
+            pause();
+            if (userIds.size() < pageSize) {
+                return;
+            }
+        }
+    }
+
+    private void checkRedisOrders(String orderKey, Progress progress) {
+        ScanOptions options = ScanOptions.scanOptions().count(pageSize).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(orderKey, options)) {
+            List<Long> chunk = new ArrayList<>(pageSize);
+            while (cursor.hasNext()) {
+                chunk.add(Long.valueOf(cursor.next()));
+                if (chunk.size() == pageSize || !cursor.hasNext()) {
+                    checkRedisChunk(chunk, progress);
+                    chunk.clear();
+                    pause();
+                }
+            }
+        }
+    }
+
+    private void checkRedisChunk(List<Long> chunk, Progress progress) {
+        Set<Long> persisted = voucherOrderService.query().select("user_id")
+                .eq("voucher_id", progress.voucherId).ne("status", 4).in("user_id", chunk).list()
+                .stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        for (Long userId : chunk) {
+            if (persisted.contains(userId)) {
+                continue;
+            }
+            // may be in the stream, confirm in the next run
+            if (!progress.drained || !progress.lastSuspects.contains(userId)) {
+                progress.suspect(userId);
+                continue;
+            }
+            progress.missingInMysql++;
+            if (!repair) {
+                // keep reporting it
+                progress.suspect(userId);
+                continue;
+            }
+            // the order is lost, give the stock back
+            int home = progress.meta.home(userId);
+            Long released = stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Arrays.asList(progress.meta.stockKey(home), progress.meta.orderKey(home)), userId.toString());
+            if (released != null && released == 1) {
+                progress.released++;
+                progress.repaired++;
+                seckillSoldOutRegistry.clear(progress.voucherId);
+            }
+        }
+    }
+
+    private List<Long> scanActiveVouchers() {
+        ScanOptions options = ScanOptions.scanOptions().match(RedisConstants.SECKILL_META_KEY + "*").count(pageSize).build();
+        List<String> metaKeys = stringRedisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            List<String> keys = new ArrayList<>();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                cursor.forEachRemaining(key -> keys.add(new String(key, StandardCharsets.UTF_8)));
+            }
+            return keys;
+        });
+        // skip vouchers ended long ago
+        long oldestEnd = System.currentTimeMillis() - retentionHours * 3600 * 1000;
+        List<Long> voucherIds = new ArrayList<>();
+        for (String metaKey : metaKeys) {
+            Object end = stringRedisTemplate.opsForHash().get(metaKey, "end");
+            if (end != null && Long.parseLong(end.toString()) < oldestEnd) {
+                continue;
+            }
+            voucherIds.add(Long.valueOf(metaKey.substring(RedisConstants.SECKILL_META_KEY.length())));
+        }
+        return voucherIds;
+    }
+
+    private boolean streamDrained() {
+        if (!orderQueue.enqueuedByScript()) {
+            // a local queue, orders taken by a consumer are covered by the confirmation in the next run
+            return orderQueue.size() == 0;
+        }
+        // every message is delivered and acknowledged
+        StreamInfo.XInfoStream stream = stringRedisTemplate.opsForStream().info(RedisConstants.STREAM_ORDERS_KEY);
+        return stringRedisTemplate.opsForStream().groups(RedisConstants.STREAM_ORDERS_KEY).stream()
+                .filter(group -> RedisConstants.STREAM_ORDERS_GROUP.equals(group.groupName()))
+                .anyMatch(group -> group.pendingCount() == 0 && stream.lastGeneratedId().equals(group.lastDeliveredId()));
+    }
+
+    private void pause() {
+        if (pauseMs <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(pauseMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Progress {
+        final Long voucherId;
+        final SeckillMeta meta;
+        final Set<Long> newSuspects = new HashSet<>();
+        Set<Long> lastSuspects;
+        boolean drained;
+        long missingInRedis;
+        long missingInMysql;
+        long repaired;
+        long released;
+
+        Progress(SeckillMeta meta) {
+            this.voucherId = meta.getVoucherId();
+            this.meta = meta;
+        }
+
+        void suspect(Long userId) {
+            // bounded, the rest is checked in later runs
+            if (newSuspects.size() < maxSuspects) {
+                newSuspects.add(userId);
+            }
+        }
+    }
+}
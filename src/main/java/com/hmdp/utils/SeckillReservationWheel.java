@@ -0,0 +1,243 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisServerCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *     Timing wheel of seckill reservations. A claimed order must be paid within timeout-seconds, seckill.lua
+ *     adds "orderId:userId:voucherId" to the slot seckill:reservation:{second it expires}, so an expiry costs
+ *     one SADD and nothing is scanned. Every tick one node walks the slots from the cursor up to the current
+ *     redis second, a bounded number of slots per tick so a long pause is caught up gradually:
+ *     1. orders still reserved in mysql are cancelled and their stock given back in one transaction,
+ *        a payment and an expiry race on the row lock.
+ *     2. then the stock is given back in redis (expire.lua), which marks the order EXPIRED in the same script.
+ *        A cancelled order is released again until its slot member is removed, so a crash between mysql and
+ *        redis is finished on the next tick, and the EXPIRED mark keeps a release from being done twice.
+ *     3. orders not in mysql yet (still queued) are moved to a later slot, paid or failed orders are dropped.
+ *        The member carries the number of moves, "orderId:userId:voucherId:retries". An order still not in mysql
+ *        after max-retries moves is taken as lost from a local queue: its stock is given back and it is marked
+ *        FAILED in the same script, so it does not stay in the wheel for ever.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+@Component
+public class SeckillReservationWheel {
+
+    private static final DefaultRedisScript<Long> EXPIRE_SCRIPT;
+
+    static {
+        EXPIRE_SCRIPT = new DefaultRedisScript<>();
+        EXPIRE_SCRIPT.setLocation(new ClassPathResource("expire.lua"));
+        EXPIRE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillMetaCache seckillMetaCache;
+
+    @Value("${hmdp.seckill.reservation.timeout-seconds:900}")
+    private long timeoutSeconds;
+    @Value("${hmdp.seckill.reservation.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.seckill.reservation.max-slots-per-tick:60}")
+    private int maxSlotsPerTick;
+    @Value("${hmdp.seckill.reservation.retry-seconds:30}")
+    private long retrySeconds;
+    @Value("${hmdp.seckill.reservation.max-retries:20}")
+    private int maxRetries;
+
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong rescheduled = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reservation.tick-ms:1000}")
+    public void tick() {
+        if (timeoutSeconds <= 0) {
+            return;
+        }
+        // one node at a time, the others skip this tick
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + "seckill:reservation");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 1. the slots are seconds of the redis clock, as in seckill.lua
+            long now = serverSecond();
+            String cursorValue = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_RESERVATION_CURSOR_KEY);
+            long cursor = cursorValue == null ? now : Long.parseLong(cursorValue);
+            // 2. a slot is due once its second has passed
+            for (int i = 0; i < maxSlotsPerTick && cursor < now; i++) {
+                drainSlot(cursor, now);
+                cursor++;
+                stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_RESERVATION_CURSOR_KEY,
+                        String.valueOf(cursor));
+            }
+        } catch (Exception e) {
+            log.error("expire seckill reservations fail: ", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drainSlot(long slot, long now) {
+        String slotKey = RedisConstants.SECKILL_RESERVATION_KEY + slot;
+        while (true) {
+            Set<String> members = stringRedisTemplate.opsForSet().distinctRandomMembers(slotKey, batchSize);
+            if (members == null || members.isEmpty()) {
+                // nothing is added to a past slot any more
+                stringRedisTemplate.delete(slotKey);
+                return;
+            }
+            expire(members, now);
+            // removed only after handled, a crash in between handles them again, which is idempotent
+            stringRedisTemplate.opsForSet().remove(slotKey, members.toArray());
+        }
+    }
+
+    private void expire(Set<String> members, long now) {
+        Map<Long, VoucherOrder> reservations = new HashMap<>(members.size());
+        Map<Long, Integer> retries = new HashMap<>(members.size());
+        for (String member : members) {
+            String[] parts = member.split(":");
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(Long.valueOf(parts[0]));
+            voucherOrder.setUserId(Long.valueOf(parts[1]));
+            voucherOrder.setVoucherId(Long.valueOf(parts[2]));
+            reservations.put(voucherOrder.getId(), voucherOrder);
+            // seckill.lua adds the member without retries
+            retries.put(voucherOrder.getId(), parts.length > 3 ? Integer.parseInt(parts[3]) : 0);
+        }
+
+        // 1. cancel the orders still reserved and give the stock back in mysql
+        List<VoucherOrder> expiredOrders = voucherOrderService.expireReservations(new ArrayList<>(reservations.keySet()));
+        expired.addAndGet(expiredOrders.size());
+        List<VoucherOrder> toRelease = new ArrayList<>(expiredOrders);
+        expiredOrders.forEach(voucherOrder -> reservations.remove(voucherOrder.getId()));
+
+        // 2. orders cancelled by an earlier tick that crashed before the redis release are released again
+        Set<Long> persisted = new HashSet<>();
+        if (!reservations.isEmpty()) {
+            for (VoucherOrder voucherOrder : voucherOrderService.query().select("id", "status")
+                    .in("id", reservations.keySet()).list()) {
+                persisted.add(voucherOrder.getId());
+                if (voucherOrder.getStatus() == 4) {
+                    toRelease.add(reservations.get(voucherOrder.getId()));
+                }
+            }
+        }
+
+        // 3. give the stock back in redis in one script, the user may claim again
+        release(toRelease, SeckillOrderStatus.EXPIRED);
+
+        // 4. paid orders are done, the others are not in mysql yet
+        String laterSlotKey = RedisConstants.SECKILL_RESERVATION_KEY + (now + retrySeconds);
+        List<VoucherOrder> lost = new ArrayList<>();
+        for (VoucherOrder voucherOrder : reservations.values()) {
+            if (persisted.contains(voucherOrder.getId())) {
+                continue;
+            }
+            // 4.1 a failed order never reaches mysql, the reconciler or the dead letter path takes care of its stock
+            String status = seckillOrderStatus.query(voucherOrder.getId(), voucherOrder.getUserId());
+            if (SeckillOrderStatus.name(SeckillOrderStatus.FAILED).equals(status)) {
+                continue;
+            }
+            // 4.2 without a status (its ttl passed) the order is done only when the user no longer holds the stock
+            if (status == null && !holdsStock(voucherOrder)) {
+                continue;
+            }
+            // 4.3 not in mysql after max-retries checks, lost from a local queue
+            int retry = retries.get(voucherOrder.getId()) + 1;
+            if (retry > maxRetries) {
+                lost.add(voucherOrder);
+                continue;
+            }
+            // 4.4 still queued, check again later
+            stringRedisTemplate.opsForSet().add(laterSlotKey, voucherOrder.getId() + ":" + voucherOrder.getUserId()
+                    + ":" + voucherOrder.getVoucherId() + ":" + retry);
+            rescheduled.incrementAndGet();
+        }
+
+        // 5. give the stock of lost orders back, marked FAILED with the release, a FAILED order is dropped above
+        if (!lost.isEmpty()) {
+            log.warn("{} seckill orders not in mysql after {} checks, stock released: {}", lost.size(), maxRetries,
+                    lost.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+            release(lost, SeckillOrderStatus.FAILED);
+            abandoned.addAndGet(lost.size());
+        }
+    }
+
+    // expire.lua, the status is set in the same script, so a repeated release of the same order does nothing
+    private void release(List<VoucherOrder> voucherOrders, String status) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(voucherOrders.size() * 3);
+        List<String> args = new ArrayList<>(voucherOrders.size() + 2);
+        args.add(String.valueOf(seckillOrderStatus.getTtlSeconds()));
+        args.add(status);
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            SeckillMeta meta = seckillMetaCache.getOrSingle(voucherOrder.getVoucherId());
+            int home = meta.home(voucherOrder.getUserId());
+            keys.add(RedisConstants.ORDER_STATUS_KEY + voucherOrder.getId());
+            keys.add(meta.stockKey(home));
+            keys.add(meta.orderKey(home));
+            args.add(voucherOrder.getUserId().toString());
+        }
+        stringRedisTemplate.execute(EXPIRE_SCRIPT, keys, args.toArray());
+        voucherOrders.stream().map(VoucherOrder::getVoucherId).distinct().forEach(seckillSoldOutRegistry::clear);
+    }
+
+    // the user is in the redis order set of the voucher, in the bucket seckill.lua routes it to
+    private boolean holdsStock(VoucherOrder voucherOrder) {
+        SeckillMeta meta = seckillMetaCache.getOrSingle(voucherOrder.getVoucherId());
+        String orderKey = meta.orderKey(meta.home(voucherOrder.getUserId()));
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(orderKey, voucherOrder.getUserId().toString()));
+    }
+
+    private long serverSecond() {
+        Long millis = stringRedisTemplate.execute((RedisCallback<Long>) RedisServerCommands::time);
+        return millis == null ? System.currentTimeMillis() / 1000 : millis / 1000;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("expired", expired.get());
+        stats.put("rescheduled", rescheduled.get());
+        stats.put("abandoned", abandoned.get());
+        stats.put("cursor", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_RESERVATION_CURSOR_KEY));
+        return stats;
+    }
+}
@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ *     Per node registry of sold out seckill vouchers, so that requests for them are rejected in memory
+ *     instead of running seckill.lua. Changes are broadcast to other nodes by redis pub/sub,
+ *     message "1:voucherId" means sold out and "0:voucherId" means restocked.
+ *     A flag only lives for sold-out-ttl-ms, then the next request runs seckill.lua again and marks it anew if the
+ *     stock is still empty. So a lost "0" message, or a "1" message arriving after a restock, only rejects
+ *     requests for that long. Every path giving stock back in redis calls clear.
+ *     Expired flags of vouchers nobody asks for any more are swept on a schedule.
+ *     Only an empty stock is marked, a voucher unknown to redis is rejected without a mark or a broadcast,
+ *     so made-up ids can not fill the registry of every node.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry {
+
+    private static final String SOLD_OUT = "1";
+    private static final String RESTOCKED = "0";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.sold-out-ttl-ms:1000}")
+    private long soldOutTtlMs;
+
+    // voucher id to the time its sold out flag expires
+    private final Map<Long, Long> soldOutVouchers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] body = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            Long voucherId = Long.valueOf(body[1]);
+            if (SOLD_OUT.equals(body[0])) {
+                soldOutVouchers.put(voucherId, System.currentTimeMillis() + soldOutTtlMs);
+            } else {
+                soldOutVouchers.remove(voucherId);
+            }
+        }, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long until = soldOutVouchers.get(voucherId);
+        if (until == null) {
+            return false;
+        }
+        if (until > System.currentTimeMillis()) {
+            return true;
+        }
+        // expired, let the script check the stock again
+        soldOutVouchers.remove(voucherId, until);
+        return false;
+    }
+
+    public void markSoldOut(Long voucherId) {
+        // only the first node seeing the empty stock needs to tell the others, until the flag expires
+        long now = System.currentTimeMillis();
+        Long until = soldOutVouchers.get(voucherId);
+        if (until != null && until > now) {
+            return;
+        }
+        boolean first = until == null ? soldOutVouchers.putIfAbsent(voucherId, now + soldOutTtlMs) == null
+                : soldOutVouchers.replace(voucherId, until, now + soldOutTtlMs);
+        if (first) {
+            log.debug("voucher {} sold out", voucherId);
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + ":" + voucherId);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.sold-out-sweep-ms:60000}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        soldOutVouchers.entrySet().removeIf(entry -> entry.getValue() <= now);
+    }
+
+    public void clear(Long voucherId) {
+        soldOutVouchers.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, RESTOCKED + ":" + voucherId);
+    }
+}
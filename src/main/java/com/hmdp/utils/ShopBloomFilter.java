@@ -0,0 +1,328 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ *     Bloom filter of existing shop ids against cache penetration: an id it rejects is not a shop,
+ *     so the lookup is answered without touching redis or mysql.
+ *     The bits are kept in the redis bitmap bloom:shop and mirrored in memory of every node, a lookup is local,
+ *     a rejected one included.
+ *     The mirror must not miss an add, it would reject a real shop:
+ *     - every add takes the next number of bloom:shop:seq after its SETBITs and broadcasts it, a node that sees
+ *       a number jump (a lost message) reloads the bitmap
+ *     - a load reads the number before the bitmap, and messages are applied one at a time with loads, so an add
+ *       racing with a load is in the bitmap or applied after it
+ *     - the bitmap is loaded after subscribing, and reloaded every reload-interval-ms for a message lost last
+ *     - built from tb_shop by keyset paging of ids when the bitmap is missing, and rebuilt periodically to drop
+ *       ids of deleted shops. A rebuild writes a new bitmap and RENAMEs it over the old one, shops added
+ *       meanwhile are caught by reading ids above the last one scanned again after the rename (ids grow)
+ *     - a new shop is added by SETBIT and broadcast "add:seq:id" by pub/sub, a rebuild broadcasts "reload"
+ *     Until the bitmap is loaded every id passes, the filter only ever fails open.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter {
+
+    private static final String ADD = "add";
+    private static final String RELOAD = "reload";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double fpp;
+    @Value("${hmdp.cache.bloom.page-size:5000}")
+    private int pageSize;
+
+    // number of bits, a multiple of 64, and number of hash functions
+    private long bits;
+    private int hashes;
+    private volatile AtomicLongArray words;
+    // number of the last add in the mirror, written under the monitor of this
+    private volatile long lastSeq;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        // optimal size for the expected insertions and false positive probability
+        long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        bits = (optimalBits + 63) / 64 * 64;
+        hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] body = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            if (ADD.equals(body[0])) {
+                onAdd(Long.parseLong(body[1]), Long.parseLong(body[2]));
+            } else if (RELOAD.equals(body[0])) {
+                load();
+            }
+        }, new ChannelTopic(RedisConstants.BLOOM_SHOP_CHANNEL));
+
+        try {
+            Boolean exists = stringRedisTemplate.hasKey(RedisConstants.BLOOM_SHOP_KEY);
+            if (exists == null || !exists) {
+                rebuild();
+            }
+            load();
+        } catch (Exception e) {
+            // fail open, the periodic rebuild tries again
+            log.error("init shop bloom filter fail: ", e);
+        }
+    }
+
+    /**
+     * @return false if the shop surely does not exist, in memory and in redis
+     */
+    public boolean mightContain(Long id) {
+        AtomicLongArray current = words;
+        if (current == null || id == null) {
+            return true;
+        }
+        for (long index : indexes(id)) {
+            if ((current.get((int) (index >>> 6)) & (1L << (index & 63))) == 0) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+        passed.incrementAndGet();
+        return true;
+    }
+
+    // an add broadcast by any node, one at a time with loads
+    private synchronized void onAdd(long seq, long id) {
+        if (seq <= lastSeq) {
+            // in the bitmap of the last load already
+            return;
+        }
+        if (seq != lastSeq + 1) {
+            // a message was lost, or two adds were published out of order, the bitmap has both
+            log.warn("shop bloom filter add {} after {}, reload", seq, lastSeq);
+            load();
+            if (seq <= lastSeq) {
+                return;
+            }
+        }
+        setLocal(id);
+        lastSeq = seq;
+    }
+
+    public void add(Long id) {
+        if (!enabled) {
+            return;
+        }
+        setLocal(id);
+        long[] indexes = indexes(id);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] key = RedisConstants.BLOOM_SHOP_KEY.getBytes(StandardCharsets.UTF_8);
+            for (long index : indexes) {
+                connection.setBit(key, index, true);
+            }
+            return null;
+        });
+        // numbered after the SETBITs, a load reading this number or a later one has the bits
+        Long seq = stringRedisTemplate.opsForValue().increment(RedisConstants.BLOOM_SHOP_SEQ_KEY);
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_SHOP_CHANNEL, ADD + ":" + seq + ":" + id);
+    }
+
+    // a message lost after the last add shows no gap until the next add, reload now and then
+    @Scheduled(initialDelayString = "${hmdp.cache.bloom.reload-interval-ms:300000}",
+            fixedDelayString = "${hmdp.cache.bloom.reload-interval-ms:300000}")
+    public void scheduledReload() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            load();
+        } catch (Exception e) {
+            log.error("reload shop bloom filter fail: ", e);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.cache.bloom.rebuild-interval-ms:21600000}",
+            fixedDelayString = "${hmdp.cache.bloom.rebuild-interval-ms:21600000}")
+    public void scheduledRebuild() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (rebuild()) {
+                stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_SHOP_CHANNEL, RELOAD);
+            }
+        } catch (Exception e) {
+            log.error("rebuild shop bloom filter fail: ", e);
+        }
+    }
+
+    /**
+     * Build the bitmap from tb_shop on one node at a time.
+     * @return false if another node is rebuilding
+     */
+    private boolean rebuild() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + "bloom:shop");
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            long[] bitmap = new long[(int) (bits / 64)];
+            // 1. stream the ids by keyset paging, memory is bounded by the page size
+            long lastId = addIdsAfter(0L, bitmap);
+            // 2. write a new bitmap and replace the old one in one step
+            String tmpKey = RedisConstants.BLOOM_SHOP_KEY + ":tmp";
+            byte[] bytes = toRedisBytes(bitmap);
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.set(tmpKey.getBytes(StandardCharsets.UTF_8), bytes);
+                connection.rename(tmpKey.getBytes(StandardCharsets.UTF_8),
+                        RedisConstants.BLOOM_SHOP_KEY.getBytes(StandardCharsets.UTF_8));
+                return null;
+            });
+            // 3. shops added since the scan may have set bits of the old bitmap only, add them again
+            shopMapper.selectList(new QueryWrapper<Shop>().select("id").gt("id", lastId).orderByAsc("id"))
+                    .forEach(shop -> add(shop.getId()));
+            log.info("shop bloom filter rebuilt, {} bits, {} hashes, last id {}, {} ms",
+                    bits, hashes, lastId, System.currentTimeMillis() - begin);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long addIdsAfter(long lastId, long[] bitmap) {
+        while (true) {
+            List<Shop> page = shopMapper.selectList(new QueryWrapper<Shop>().select("id")
+                    .gt("id", lastId).orderByAsc("id").last("limit " + pageSize));
+            for (Shop shop : page) {
+                for (long index : indexes(shop.getId())) {
+                    bitmap[(int) (index >>> 6)] |= 1L << (index & 63);
+                }
+                lastId = shop.getId();
+            }
+            if (page.size() < pageSize) {
+                return lastId;
+            }
+        }
+    }
+
+    private synchronized void load() {
+        // the number of the last add before the bitmap, every add up to it has set its bits already
+        String seq = stringRedisTemplate.opsForValue().get(RedisConstants.BLOOM_SHOP_SEQ_KEY);
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(RedisConstants.BLOOM_SHOP_KEY.getBytes(StandardCharsets.UTF_8)));
+        if (bytes == null) {
+            return;
+        }
+        AtomicLongArray loaded = new AtomicLongArray((int) (bits / 64));
+        int length = (int) Math.min(bytes.length, bits / 8);
+        for (int i = 0; i < length; i++) {
+            for (int b = 0; b < 8; b++) {
+                // redis bit offset 8i+b is the bit 7-b of byte i
+                if ((bytes[i] >> (7 - b) & 1) != 0) {
+                    long index = i * 8L + b;
+                    loaded.set((int) (index >>> 6), loaded.get((int) (index >>> 6)) | 1L << (index & 63));
+                }
+            }
+        }
+        words = loaded;
+        lastSeq = seq == null ? 0 : Long.parseLong(seq);
+        reloads.incrementAndGet();
+    }
+
+    private void setLocal(long id) {
+        AtomicLongArray current = words;
+        if (current == null) {
+            return;
+        }
+        for (long index : indexes(id)) {
+            int word = (int) (index >>> 6);
+            long mask = 1L << (index & 63);
+            long old;
+            do {
+                old = current.get(word);
+            } while ((old & mask) == 0 && !current.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    private byte[] toRedisBytes(long[] bitmap) {
+        byte[] bytes = new byte[bitmap.length * 8];
+        for (long index = 0; index < bits; index++) {
+            if ((bitmap[(int) (index >>> 6)] & 1L << (index & 63)) != 0) {
+                bytes[(int) (index >>> 3)] |= (byte) (1 << (7 - (index & 7)));
+            }
+        }
+        return bytes;
+    }
+
+    // k bit indexes from two hashes of the id, h1 + i * h2
+    private long[] indexes(long id) {
+        long h1 = mix(id);
+        long h2 = mix(id ^ 0x9E3779B97F4A7C15L) | 1;
+        long[] indexes = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            indexes[i] = Math.floorMod(h1 + i * h2, bits);
+        }
+        return indexes;
+    }
+
+    // finalizer of murmur3, spreads the bits of consecutive ids
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("bits", bits);
+        stats.put("hashes", hashes);
+        stats.put("loaded", words != null);
+        stats.put("rejected", rejected.get());
+        stats.put("passed", passed.get());
+        stats.put("reloads", reloads.get());
+        stats.put("lastSeq", lastSeq);
+        return stats;
+    }
+}
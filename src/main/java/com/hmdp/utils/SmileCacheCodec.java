@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * <p>
+ *     Jackson Smile, binary JSON: numbers and dates are binary, repeated field names are back references,
+ *     null fields are left out. Unknown fields are ignored and missing ones stay null, so classes may gain
+ *     or lose fields without making old entries unreadable.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+public class SmileCacheCodec implements CacheCodec {
+
+    public static final byte ID = 'S';
+
+    private final ObjectMapper mapper;
+
+    public SmileCacheCodec() {
+        // the frame header of CacheSerializer already identifies the format, skip the 4 bytes smile header
+        SmileFactory factory = SmileFactory.builder()
+                .disable(SmileGenerator.Feature.WRITE_HEADER)
+                .disable(SmileParser.Feature.REQUIRE_HEADER)
+                .build();
+        mapper = new ObjectMapper(factory)
+                .registerModule(new JavaTimeModule())
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("encode cache value fail", e);
+        }
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, int offset, int length, Class<R> rClass) {
+        try {
+            return mapper.readValue(bytes, offset, length, rClass);
+        } catch (IOException e) {
+            throw new IllegalStateException("decode cache value fail", e);
+        }
+    }
+
+    @Override
+    public <R> List<R> decodeList(byte[] bytes, int offset, int length, Class<R> rClass) {
+        try {
+            return mapper.readValue(bytes, offset, length,
+                    mapper.getTypeFactory().constructCollectionType(List.class, rClass));
+        } catch (IOException e) {
+            throw new IllegalStateException("decode cache value fail", e);
+        }
+    }
+}
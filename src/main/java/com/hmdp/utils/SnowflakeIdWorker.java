@@ -0,0 +1,198 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ *     Snowflake style id: 1 tag bit | 40 bits millis since 2022-01-01 | 10 bits worker id | 12 bits sequence.
+ *     The tag bit 62 is always set and never set in an id of RedisIdWorker (seconds since 2022-01-01 shifted by 32
+ *     reach it in 2056, as do the 40 bits of millis), so switching hmdp.id-worker.type on a live database can not
+ *     produce an id of the other generator.
+ *     The worker id is leased from redis once with a ttl and kept by heartbeat, so no redis call is needed per id.
+ *     The heartbeat renews the lease outside the monitor of nextId and publishes it by replacing the lease.
+ *     The ids are unique without the key prefix, which is ignored.
+ * </p>
+ *
+ * @author Zihao Shen
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker implements IdGenerator {
+
+    private static final long INIT_TIME_STAMP = LocalDateTime.of(2022, 1, 1, 0, 0, 0)
+            .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+    private static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKER_ID = (1 << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long TAG = 1L << 62;
+
+    private static final String LEASE_TOKEN = UUID.randomUUID().toString(true);
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.id-worker.lease-ttl-seconds:30}")
+    private long leaseTtlSeconds;
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    // null means no lease, replaced as a whole so nextId sees a worker id and its validity together
+    private final AtomicReference<Lease> lease = new AtomicReference<>();
+
+    // written under the monitor of nextId, read by the heartbeat
+    private volatile long lastTimeStamp = -1;
+    private long sequence;
+
+    private static class Lease {
+        final long workerId;
+        // the lease can be trusted until then, after it another node may own the worker id
+        final long validUntil;
+
+        Lease(long workerId, long validUntil) {
+            this.workerId = workerId;
+            this.validUntil = validUntil;
+        }
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        // 1. make sure the worker id is still ours
+        Lease current = lease.get();
+        if (current == null || System.currentTimeMillis() >= current.validUntil) {
+            current = lease(current);
+        }
+
+        // 2. generate timestamp, clock moving backwards keeps using the last timestamp
+        long timeStamp = Math.max(System.currentTimeMillis() - INIT_TIME_STAMP, lastTimeStamp);
+
+        // 3. sequence in the same millis, borrow the next millis when it runs out
+        if (timeStamp == lastTimeStamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                timeStamp++;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimeStamp = timeStamp;
+
+        // 4. concat and return
+        return TAG | timeStamp << (WORKER_ID_BITS + SEQUENCE_BITS) | current.workerId << SEQUENCE_BITS | sequence;
+    }
+
+    private Lease lease(Lease current) {
+        if (current != null && renew(current)) {
+            return lease.get();
+        }
+        // 1. try worker ids from a random start, SET NX EX
+        int start = RandomUtil.randomInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int id = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(RedisConstants.ID_WORKER_KEY + id,
+                    LEASE_TOKEN, leaseTtlSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                // 2. continue after the last timestamp of the previous owner, plus a heartbeat it may not have reported
+                String last = stringRedisTemplate.opsForValue().get(RedisConstants.ID_WORKER_LAST_KEY + id);
+                if (last != null) {
+                    lastTimeStamp = Math.max(lastTimeStamp, Long.parseLong(last) + heartbeatMillis());
+                }
+                Lease leased = new Lease(id, System.currentTimeMillis() + leaseTtlSeconds * 1000);
+                lease.set(leased);
+                startHeartbeat();
+                log.info("leased snowflake worker id {}", id);
+                return leased;
+            }
+        }
+        throw new IllegalStateException("no free snowflake worker id");
+    }
+
+    // not synchronized, nextId keeps handing out ids of the current lease during the redis call
+    private boolean renew(Lease current) {
+        long before = System.currentTimeMillis();
+        Long result = stringRedisTemplate.execute(RENEW_SCRIPT,
+                Arrays.asList(RedisConstants.ID_WORKER_KEY + current.workerId,
+                        RedisConstants.ID_WORKER_LAST_KEY + current.workerId),
+                LEASE_TOKEN, String.valueOf(leaseTtlSeconds), String.valueOf(lastTimeStamp));
+        if (result == null || result == 0) {
+            // lost the lease, lease a new worker id on next call
+            log.warn("snowflake worker id {} lease lost", current.workerId);
+            lease.compareAndSet(current, null);
+            return false;
+        }
+        // a lease taken meanwhile by nextId is newer, keep it
+        lease.compareAndSet(current, new Lease(current.workerId, before + leaseTtlSeconds * 1000));
+        return true;
+    }
+
+    private long heartbeatMillis() {
+        return leaseTtlSeconds * 1000 / 3;
+    }
+
+    private void startHeartbeat() {
+        if (heartbeatExecutor != null) {
+            return;
+        }
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snowflake-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                Lease current = lease.get();
+                if (current != null) {
+                    renew(current);
+                }
+            } catch (Exception e) {
+                // the lease is not extended, ids stop before another node could take the worker id
+                log.error("renew snowflake worker id fail: ", e);
+            }
+        }, heartbeatMillis(), heartbeatMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private synchronized void release() {
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+        }
+        Lease current = lease.getAndSet(null);
+        if (current != null) {
+            stringRedisTemplate.opsForValue().set(RedisConstants.ID_WORKER_LAST_KEY + current.workerId,
+                    String.valueOf(lastTimeStamp));
+            stringRedisTemplate.execute(UNLOCK_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + current.workerId), LEASE_TOKEN);
+        }
+    }
+}
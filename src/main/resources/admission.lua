@@ -0,0 +1,36 @@
+---
+--- Created by Zihao Shen
+---
+
+-- voucher id
+local voucherId = ARGV[1]
+-- permits wanted by the node
+local want = tonumber(ARGV[2])
+-- permits of all nodes in a sliding window
+local limit = tonumber(ARGV[3])
+-- size of the window in millis
+local windowMs = tonumber(ARGV[4])
+
+-- nothing to grant without a capacity, and a window must be positive for the modulo below
+if (limit <= 0 or windowMs <= 0) then
+    return 0
+end
+
+-- sliding window approximated by the current and the previous fixed window
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local window = math.floor(now / windowMs)
+local currKey = 'seckill:admission:' .. voucherId .. ':' .. window
+local prevKey = 'seckill:admission:' .. voucherId .. ':' .. (window - 1)
+local curr = tonumber(redis.call('get', currKey)) or 0
+local prev = tonumber(redis.call('get', prevKey)) or 0
+local used = math.floor(prev * (1 - (now % windowMs) / windowMs)) + curr
+
+-- grant what is left, at most what is wanted
+local granted = math.min(want, limit - used)
+if (granted <= 0) then
+    return 0
+end
+redis.call('incrby', currKey, granted)
+redis.call('pexpire', currKey, windowMs * 2)
+return granted
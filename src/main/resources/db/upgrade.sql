@@ -0,0 +1,49 @@
+-- ----------------------------
+-- Upgrade of an existing database created by an earlier hmdp.sql, hmdp.sql creates the tables in their current form.
+-- Every step checks information_schema first, so the script can be run again, on a database of the first hmdp.sql
+-- or on one already altered by hand in between.
+-- ----------------------------
+
+-- ----------------------------
+-- tb_voucher_order: reservations with payment timeout, a cancelled order sets active = NULL
+-- and no longer holds the unique key of (user_id, voucher_id), so the user can order again.
+-- The unique key fails on a user with two active orders of a voucher, list them first:
+--   SELECT user_id, voucher_id, COUNT(*) FROM tb_voucher_order GROUP BY user_id, voucher_id HAVING COUNT(*) > 1;
+-- ----------------------------
+SET @sql = IF((SELECT COUNT(*) FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE()
+                 AND TABLE_NAME = 'tb_voucher_order' AND COLUMN_NAME = 'active') = 0,
+  'ALTER TABLE `tb_voucher_order` ADD COLUMN `active` tinyint(1) UNSIGNED NULL DEFAULT 1 COMMENT ''1：有效订单；NULL：已取消，不再占用唯一键'' AFTER `update_time`',
+  'DO 0');
+PREPARE stmt FROM @sql;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+-- a unique key of (user_id, voucher_id) only, added by hand before active existed, is replaced
+SET @sql = IF((SELECT COUNT(*) FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE()
+                 AND TABLE_NAME = 'tb_voucher_order' AND INDEX_NAME = 'uk_user_voucher') > 0
+              AND (SELECT COUNT(*) FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE()
+                 AND TABLE_NAME = 'tb_voucher_order' AND INDEX_NAME = 'uk_user_voucher' AND COLUMN_NAME = 'active') = 0,
+  'ALTER TABLE `tb_voucher_order` DROP INDEX `uk_user_voucher`',
+  'DO 0');
+PREPARE stmt FROM @sql;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+SET @sql = IF((SELECT COUNT(*) FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE()
+                 AND TABLE_NAME = 'tb_voucher_order' AND INDEX_NAME = 'uk_user_voucher') = 0,
+  'ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE',
+  'DO 0');
+PREPARE stmt FROM @sql;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+-- ----------------------------
+-- tb_voucher_order: orders of a voucher in user order, paged by the reconciliation of redis and mysql
+-- ----------------------------
+SET @sql = IF((SELECT COUNT(*) FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE()
+                 AND TABLE_NAME = 'tb_voucher_order' AND INDEX_NAME = 'idx_voucher_user') = 0,
+  'ALTER TABLE `tb_voucher_order` ADD INDEX `idx_voucher_user`(`voucher_id`, `user_id`) USING BTREE',
+  'DO 0');
+PREPARE stmt FROM @sql;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
@@ -0,0 +1,27 @@
+---
+--- Created by Zihao Shen
+---
+
+-- KEYS: triples of the order status, the stock and the order set of the bucket the user belongs to
+-- ARGV[1]: ttl of the order status in seconds, ARGV[2]: status set with the release, '4' (EXPIRED) for a cancelled
+-- reservation, '2' (FAILED) for an order lost before mysql, then the user id of each triple
+local statusTtl = ARGV[1]
+local released = 0
+local mark = ARGV[2]
+for i = 1, #ARGV - 2 do
+    local statusKey = KEYS[3 * i - 2]
+    local stockKey = KEYS[3 * i - 1]
+    local orderKey = KEYS[3 * i]
+    local userId = ARGV[i + 2]
+    -- the status is set in the same script as the release, so the mark means the stock of this order was given back,
+    -- a second release could take the place of a new order of the user
+    local status = redis.call('get', statusKey)
+    if (not status or string.sub(status, 1, #mark + 1) ~= mark .. ':') then
+        if (redis.call('srem', orderKey, userId) == 1) then
+            redis.call('incrby', stockKey, 1)
+            released = released + 1
+        end
+        redis.call('set', statusKey, mark .. ':' .. userId, 'EX', statusTtl)
+    end
+end
+return released
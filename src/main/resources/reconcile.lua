@@ -0,0 +1,9 @@
+---
+--- Created by Zihao Shen
+---
+
+-- KEYS[1]: stock of a bucket, KEYS[2]: order set of the bucket
+-- snapshot of stock and orders of a bucket in one step, so an order in between can not skew the sum
+local stock = tonumber(redis.call('get', KEYS[1])) or 0
+local orders = redis.call('scard', KEYS[2])
+return {stock, orders}
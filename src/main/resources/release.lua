@@ -0,0 +1,18 @@
+---
+--- Created by Zihao Shen
+---
+
+-- KEYS: pairs of the stock and the order set of the bucket each user belongs to, ARGV: the user ids
+local released = 0
+for i = 1, #ARGV do
+    local userId = ARGV[i]
+    local stockKey = KEYS[2 * i - 1]
+    local orderKey = KEYS[2 * i]
+
+    -- give the stock back only if the user really held it, so a release is never counted twice
+    if (redis.call('srem', orderKey, userId) == 1) then
+        redis.call('incrby', stockKey, 1)
+        released = released + 1
+    end
+end
+return released
@@ -0,0 +1,14 @@
+---
+--- Created by Zihao Shen.
+---
+
+-- key of worker id lease: KEYS[1]
+-- key of the last timestamp used by the worker id: KEYS[2]
+-- lease token of this node: ARGV[1], ttl in seconds: ARGV[2], last timestamp: ARGV[3]
+-- renew only if the lease still belongs to this node
+if (ARGV[1] == redis.call('get', KEYS[1])) then
+    redis.call('expire', KEYS[1], ARGV[2])
+    redis.call('set', KEYS[2], ARGV[3])
+    return 1
+end
+return 0
@@ -2,32 +2,68 @@
 --- Created by Zihao Shen
 ---
 
+-- KEYS[1]: stock of the bucket the user belongs to, KEYS[2]: order set of that bucket, one slot by the hash tag,
+-- the caller routes the user to the bucket and takes stock from sibling buckets when this one is empty
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
 -- voucher id
 local voucherId = ARGV[1]
 -- user id
 local userId = ARGV[2]
 -- order id
 local orderId = ARGV[3]
--- key of stock
-local stockKey = 'seckill:stock:' .. voucherId
--- key of order
-local orderKey = 'seckill:order:' .. voucherId
+-- ttl of the order status in seconds
+local statusTtl = ARGV[4]
+-- '1' if the order queue is stream.orders, otherwise the caller enqueues the order to a local queue
+local toStream = ARGV[5]
+-- seconds to pay before the reservation expires, 0 for no reservation
+local reserveSeconds = tonumber(ARGV[6]) or 0
+-- sale window in epoch millis from seckill:meta:{voucherId}, empty if not limited
+local beginTime = tonumber(ARGV[7])
+local endTime = tonumber(ARGV[8])
 
--- check if the stock > 0
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    -- out of stock
-    return 1
+-- check the sale window by redis server time, so all nodes agree on now
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (beginTime and now < beginTime) then
+    -- not started
+    return 3
+end
+if (endTime and now > endTime) then
+    -- already ended
+    return 4
 end
--- check if the user order more than once: SISMEMBER orderKey userId
+
+-- check if the user order more than once: SISMEMBER orderKey userId,
+-- before the stock, so the caller does not take stock from sibling buckets for a second order
 if (redis.call('sismember', orderKey, userId) == 1) then
     -- if exist, duplicate order, reject
     return 2
 end
+-- check if the stock > 0
+local stock = redis.call('get', stockKey)
+if (not stock) then
+    -- no stock key, not a seckill voucher
+    return 6
+end
+if (tonumber(stock) <= 0) then
+    -- out of stock in this bucket
+    return 1
+end
 -- stock subtract 1: incrby stockKey -1
 redis.call('incrby', stockKey, -1)
 -- create order: sadd orderKey userId
 redis.call('sadd', orderKey, userId)
 
 -- send message to MessageQueue
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+if (toStream == '1') then
+    redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+-- order status pending: "0:userId"
+redis.call('set', 'order:status:' .. orderId, '0:' .. userId, 'EX', statusTtl)
+-- reservation: add to the slot of the timing wheel of the second it expires
+if (reserveSeconds > 0) then
+    local slot = math.floor(now / 1000) + reserveSeconds
+    redis.call('sadd', 'seckill:reservation:' .. slot, orderId .. ':' .. userId .. ':' .. voucherId)
+end
+return 0
@@ -0,0 +1,94 @@
+---
+--- Created by Zihao Shen
+---
+
+-- KEYS: pairs of the stock and the order set of the bucket the user belongs to, one pair per voucher,
+-- each pair in one slot by the hash tag
+-- user id
+local userId = ARGV[1]
+-- ttl of the order status in seconds
+local statusTtl = ARGV[2]
+-- '1' if the order queue is stream.orders, otherwise the caller enqueues the orders to a local queue
+local toStream = ARGV[3]
+-- '1': all or nothing, otherwise best effort
+local allOrNothing = ARGV[4]
+-- seconds to pay before the reservation expires, 0 for no reservation
+local reserveSeconds = tonumber(ARGV[5]) or 0
+-- ARGV[6..]: quadruples of voucher id, order id and the sale window in epoch millis (empty if not limited)
+local n = (#ARGV - 5) / 4
+
+-- one server time for all vouchers
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- same checks as seckill.lua
+local function check(i)
+    local beginTime = tonumber(ARGV[4 + 4 * i])
+    local endTime = tonumber(ARGV[5 + 4 * i])
+    if (beginTime and now < beginTime) then
+        -- not started
+        return 3
+    end
+    if (endTime and now > endTime) then
+        -- already ended
+        return 4
+    end
+    if (redis.call('sismember', KEYS[2 * i], userId) == 1) then
+        -- duplicate order
+        return 2
+    end
+    local stock = redis.call('get', KEYS[2 * i - 1])
+    if (not stock) then
+        -- no stock key, not a seckill voucher
+        return 6
+    end
+    if (tonumber(stock) <= 0) then
+        -- out of stock in this bucket
+        return 1
+    end
+    return 0
+end
+
+-- 1. check every voucher before changing anything
+local results = {}
+local failed = false
+for i = 1, n do
+    results[i] = check(i)
+    if (results[i] ~= 0) then
+        failed = true
+    end
+end
+if (failed and allOrNothing == '1') then
+    -- 5: could be claimed, but another voucher of the bundle can not
+    for i = 1, n do
+        if (results[i] == 0) then
+            results[i] = 5
+        end
+    end
+    return results
+end
+
+-- 2. take stock and add the user for every voucher that passed
+local voucherIds, orderIds = {}, {}
+local slotKey = 'seckill:reservation:' .. (math.floor(now / 1000) + reserveSeconds)
+for i = 1, n do
+    if (results[i] == 0) then
+        local voucherId = ARGV[2 + 4 * i]
+        local orderId = ARGV[3 + 4 * i]
+        redis.call('incrby', KEYS[2 * i - 1], -1)
+        redis.call('sadd', KEYS[2 * i], userId)
+        redis.call('set', 'order:status:' .. orderId, '0:' .. userId, 'EX', statusTtl)
+        if (reserveSeconds > 0) then
+            redis.call('sadd', slotKey, orderId .. ':' .. userId .. ':' .. voucherId)
+        end
+        table.insert(voucherIds, voucherId)
+        table.insert(orderIds, orderId)
+    end
+end
+
+-- 3. one message for all orders of the bundle
+if (toStream == '1' and #orderIds > 0) then
+    redis.call('xadd', 'stream.orders', '*', 'userId', userId,
+            'voucherIds', table.concat(voucherIds, ','), 'ids', table.concat(orderIds, ','))
+end
+return results
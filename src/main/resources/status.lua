@@ -0,0 +1,29 @@
+---
+--- Created by Zihao Shen
+---
+
+-- ARGV[1]: ttl of the order status in seconds, ARGV[2]: new status, then pairs of order id and user id
+-- a status only moves forward: PENDING (0) -> PERSISTED (1) -> FAILED (2), PAID (3) or EXPIRED (4), which are final,
+-- so a redelivered order can not turn a paid or expired one back into persisted
+local function rank(status)
+    if (status == '0') then
+        return 0
+    end
+    if (status == '1') then
+        return 1
+    end
+    return 2
+end
+
+local statusTtl = ARGV[1]
+local status = ARGV[2]
+local marked = 0
+for i = 3, #ARGV, 2 do
+    local statusKey = 'order:status:' .. ARGV[i]
+    local current = redis.call('get', statusKey)
+    if (not current or rank(string.sub(current, 1, 1)) < rank(status)) then
+        redis.call('set', statusKey, status .. ':' .. ARGV[i + 1], 'EX', statusTtl)
+        marked = marked + 1
+    end
+end
+return marked
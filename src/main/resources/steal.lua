@@ -0,0 +1,13 @@
+---
+--- Created by Zihao Shen
+---
+
+-- KEYS[1]: stock of a sibling bucket, ARGV[1]: units to take at most
+-- takes half of the stock, at least 1 and at most ARGV[1], the caller adds it to the home bucket of the user
+local stock = tonumber(redis.call('get', KEYS[1])) or 0
+if (stock <= 0) then
+    return 0
+end
+local n = math.min(math.ceil(stock / 2), tonumber(ARGV[1]))
+redis.call('incrby', KEYS[1], -n)
+return n
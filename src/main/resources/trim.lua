@@ -0,0 +1,64 @@
+---
+--- Created by Zihao Shen
+---
+
+-- key of the stream
+local key = ARGV[1]
+-- entries older than this are trimmed
+local maxAgeMs = tonumber(ARGV[2])
+-- entries beyond this length are trimmed
+local maxLen = tonumber(ARGV[3])
+-- at most this many entries are looked at for the length limit in one call
+local maxScan = tonumber(ARGV[4])
+
+local function less(a, b)
+    local aMs, aSeq = string.match(a, '(%d+)-(%d+)')
+    local bMs, bSeq = string.match(b, '(%d+)-(%d+)')
+    aMs, bMs = tonumber(aMs), tonumber(bMs)
+    return aMs < bMs or (aMs == bMs and tonumber(aSeq) < tonumber(bSeq))
+end
+
+if (redis.call('exists', key) == 0) then
+    return 0
+end
+
+-- 1. lowest id still needed by any group: its oldest pending entry, entries up to last delivered are acknowledged
+local safeId = nil
+for _, group in ipairs(redis.call('xinfo', 'groups', key)) do
+    local info = {}
+    for i = 1, #group, 2 do
+        info[group[i]] = group[i + 1]
+    end
+    local neededId = info['last-delivered-id']
+    if (tonumber(info['pending']) > 0) then
+        neededId = redis.call('xpending', key, info['name'])[2]
+    end
+    if (safeId == nil or less(neededId, safeId)) then
+        safeId = neededId
+    end
+end
+if (safeId == nil) then
+    -- no group reads the stream yet, keep everything
+    return 0
+end
+
+-- 2. age limit, by redis server time like the ids
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local trimId = (now - maxAgeMs) .. '-0'
+
+-- 3. length limit: the first id to keep
+local excess = redis.call('xlen', key) - maxLen
+if (excess > 0) then
+    local oldest = redis.call('xrange', key, '-', '+', 'COUNT', math.min(excess, maxScan) + 1)
+    local keepId = oldest[#oldest][1]
+    if (less(trimId, keepId)) then
+        trimId = keepId
+    end
+end
+
+-- 4. never trim what is not acknowledged
+if (less(safeId, trimId)) then
+    trimId = safeId
+end
+return redis.call('xtrim', key, 'MINID', '~', trimId)
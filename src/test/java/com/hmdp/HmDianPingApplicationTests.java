@@ -4,39 +4,100 @@ import com.baomidou.mybatisplus.extension.service.IService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.JournalOrderQueue;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.NearCache;
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.QueuedOrder;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisStreamOrderQueue;
+import com.hmdp.utils.RingBufferOrderQueue;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillMeta;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SmileCacheCodec;
+import com.hmdp.utils.SnowflakeIdWorker;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests extends ServiceImpl<ShopMapper, Shop> implements IService<Shop> {
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private NearCache nearCache;
+    @Resource
+    private CacheSerializer cacheSerializer;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
     @Resource
     private RedisIdWorker redisIdWorker;
     @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+    @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IShopService shopService;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private MeterRegistry meterRegistry;
 
     private ExecutorService executorService = Executors.newFixedThreadPool(500);
 
@@ -45,6 +106,229 @@ class HmDianPingApplicationTests extends ServiceImpl<ShopMapper, Shop> implement
         cacheClient.saveShopToRedis(RedisConstants.CACHE_SHOP_KEY, 1L, 10L, this::getById);
     }
 
+    /*
+     * Hot shop reads: redis GET + json parse on every call against CacheClient with the near cache in front.
+     */
+    @Test
+    void testNearCache() {
+        String key = RedisConstants.CACHE_SHOP_KEY + 1L;
+        cacheClient.delete(key);
+        // load shop 1 into redis and the near cache
+        cacheClient.queryByID_passThroughSolution(RedisConstants.CACHE_SHOP_KEY, 1L,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, Shop.class, this::getById);
+        int n = 100000;
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long begin = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            cacheSerializer.deserialize(stringRedisTemplate.execute(
+                    (RedisCallback<byte[]>) connection -> connection.get(keyBytes)), Shop.class);
+        }
+        System.out.println("redis only, avg us = " + (System.nanoTime() - begin) / 1000.0 / n);
+
+        begin = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            cacheClient.queryByID_passThroughSolution(RedisConstants.CACHE_SHOP_KEY, 1L,
+                    RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, Shop.class, this::getById);
+        }
+        System.out.println("near cache, avg us = " + (System.nanoTime() - begin) / 1000.0 / n);
+        System.out.println("near cache stats = " + nearCache.stats());
+    }
+
+    /*
+     * Hot key miss: 500 threads read shop 1 right after its cache is deleted, the database should be read once.
+     */
+    @Test
+    void testSingleFlight() throws InterruptedException {
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + 1L);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(500);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 500; i++) {
+            executorService.submit(() -> {
+                try {
+                    cacheClient.queryByID_MutexSolution(RedisConstants.CACHE_SHOP_KEY, 1L, RedisConstants.LOCK_SHOP_KEY,
+                            RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, Shop.class, id -> {
+                                loads.incrementAndGet();
+                                return getById(id);
+                            });
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        System.out.println("time = " + (System.currentTimeMillis() - begin) + ", database loads = " + loads.get());
+        assertEquals(1, loads.get());
+    }
+
+    /*
+     * A page of 10 shops: one cached query per id against one queryByIds (MGET, misses in one database query).
+     */
+    @Test
+    void testQueryByIds() {
+        List<Long> ids = LongStream.rangeClosed(1, 10).boxed().collect(Collectors.toList());
+        int rounds = 1000;
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (Long id : ids) {
+                stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
+            }
+        }
+        System.out.println("one GET per id, avg us per page = " + (System.nanoTime() - begin) / 1000.0 / rounds);
+
+        ids.forEach(id -> stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id));
+        begin = System.nanoTime();
+        List<Shop> shops = cacheClient.queryByIds(RedisConstants.CACHE_SHOP_KEY, ids, RedisConstants.CACHE_SHOP_TTL,
+                TimeUnit.MINUTES, Shop.class, Shop::getId, shopService::listByIds);
+        System.out.println("cold page, us = " + (System.nanoTime() - begin) / 1000.0 + ", shops = "
+                + shops.stream().map(Shop::getId).collect(Collectors.toList()));
+
+        begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            cacheClient.queryByIds(RedisConstants.CACHE_SHOP_KEY, ids, RedisConstants.CACHE_SHOP_TTL,
+                    TimeUnit.MINUTES, Shop.class, Shop::getId, shopService::listByIds);
+        }
+        System.out.println("queryByIds, avg us per page = " + (System.nanoTime() - begin) / 1000.0 / rounds);
+    }
+
+    /*
+     * Two callers missing the same id at once share one load, but never one instance: callers decorate
+     * the values per request (distance, isLike).
+     */
+    @Test
+    void testQueryByIdsInstances() throws Exception {
+        List<Long> ids = Collections.singletonList(1L);
+        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + 1L);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        Future<List<Shop>> owner = executorService.submit(() -> cacheClient.queryByIds(RedisConstants.CACHE_SHOP_KEY,
+                ids, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, Shop.class, Shop::getId, missing -> {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return shopService.listByIds(missing);
+                }));
+        loading.await();
+        Future<List<Shop>> waiter = executorService.submit(() -> cacheClient.queryByIds(RedisConstants.CACHE_SHOP_KEY,
+                ids, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, Shop.class, Shop::getId, missing -> {
+                    loads.incrementAndGet();
+                    return shopService.listByIds(missing);
+                }));
+        Shop first = owner.get().get(0);
+        Shop second = waiter.get().get(0);
+        assertEquals(1, loads.get());
+        assertEquals(first.getId(), second.getId());
+        assertNotSame(first, second);
+    }
+
+    /*
+     * Shop 1 encoded by the old JSON format and by each codec: bytes, redis MEMORY USAGE and encode / decode time.
+     */
+    @Test
+    void testCacheCodecs() {
+        Shop shop = getById(1L);
+        int n = 100000;
+        Map<String, CacheCodec> codecs = new LinkedHashMap<>();
+        codecs.put("json", new JsonCacheCodec());
+        codecs.put("smile", new SmileCacheCodec());
+        for (Map.Entry<String, CacheCodec> entry : codecs.entrySet()) {
+            CacheCodec codec = entry.getValue();
+            byte[] bytes = codec.encode(shop);
+            byte[] key = ("bench:codec:" + entry.getKey()).getBytes(StandardCharsets.UTF_8);
+            Object memory = stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.set(key, bytes);
+                return connection.execute("MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), key);
+            });
+
+            long begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                codec.encode(shop);
+            }
+            long encodeNs = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                codec.decode(bytes, 0, bytes.length, Shop.class);
+            }
+            long decodeNs = System.nanoTime() - begin;
+            System.out.println(entry.getKey() + ": bytes = " + bytes.length + ", memory usage = " + memory
+                    + ", encode ns = " + encodeNs / n + ", decode ns = " + decodeNs / n);
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.del(key));
+        }
+    }
+
+    /*
+     * A key written by one solution and read by another: a frame of the other kind is a miss, never decoded.
+     */
+    @Test
+    void testCacheFrameKinds() {
+        Shop shop = getById(1L);
+        byte[] value = cacheSerializer.serialize(shop);
+        byte[] envelope = cacheSerializer.serializeWithExpiration(shop, System.currentTimeMillis(), 0);
+        assertTrue(cacheSerializer.isValue(value));
+        assertFalse(cacheSerializer.isEnvelope(value));
+        assertTrue(cacheSerializer.isEnvelope(envelope));
+        assertFalse(cacheSerializer.isValue(envelope));
+        assertTrue(cacheSerializer.isValue(new byte[0]));
+
+        String key = RedisConstants.CACHE_SHOP_KEY + 1L;
+        cacheClient.delete(key);
+        cacheClient.setWithLogicalExpiration(key, shop, 10L, TimeUnit.SECONDS);
+        Shop read = cacheClient.queryByIds(RedisConstants.CACHE_SHOP_KEY, Collections.singletonList(1L),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, Shop.class, Shop::getId, shopService::listByIds).get(0);
+        assertEquals(shop.getName(), read.getName());
+    }
+
+    /*
+     * Shop 1 expiring logically in 2 s, read in a loop by 50 threads for 4 s: prints when each refresh started,
+     * relative to the expiry, negative values are early refreshes.
+     */
+    @Test
+    void testEarlyRefresh() throws InterruptedException {
+        cacheClient.setWithLogicalExpiration(RedisConstants.CACHE_SHOP_KEY + 1L, getById(1L), 2L, TimeUnit.SECONDS);
+        long expireAt = System.currentTimeMillis() + 2000;
+        List<Long> refreshes = Collections.synchronizedList(new ArrayList<>());
+        long end = System.currentTimeMillis() + 4000;
+        CountDownLatch latch = new CountDownLatch(50);
+        for (int t = 0; t < 50; t++) {
+            executorService.submit(() -> {
+                while (System.currentTimeMillis() < end) {
+                    cacheClient.queryByID_LogicExpirationSolution(RedisConstants.CACHE_SHOP_KEY, 1L,
+                            RedisConstants.LOCK_SHOP_KEY, 2L, TimeUnit.SECONDS, Shop.class, id -> {
+                                refreshes.add(System.currentTimeMillis() - expireAt);
+                                return getById(id);
+                            });
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        System.out.println("refreshes ms after expiry = " + refreshes);
+    }
+
+    /*
+     * Zipf-like reads of 10000 shop keys: the detector should report the few hottest, and their cost per lookup.
+     */
+    @Test
+    void testHotKeyDetector() {
+        int n = 1000000;
+        long begin = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            // key k is read with a chance about 1 / k
+            int k = (int) Math.pow(10000, ThreadLocalRandom.current().nextDouble());
+            hotKeyDetector.record(RedisConstants.CACHE_SHOP_KEY + k);
+        }
+        System.out.println("record avg ns = " + (System.nanoTime() - begin) / n);
+        System.out.println("hot keys = " + hotKeyDetector.snapshot());
+        hotKeyDetector.decay();
+        System.out.println("hot keys after one decay = " + hotKeyDetector.snapshot());
+    }
+
     @Test
     void testIdWorker() throws InterruptedException {
         CountDownLatch latch = new CountDownLatch(300);
@@ -66,6 +350,68 @@ class HmDianPingApplicationTests extends ServiceImpl<ShopMapper, Shop> implement
         System.out.println("time = " + (end - begin));
     }
 
+    @Test
+    void testIdWorkerSegment() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(300);
+
+        Runnable task = () -> {
+            for (int i=0; i<100; i++) {
+                long id = redisIdWorker.nextIdBySegment("order");
+                System.out.println("id = " + id);
+            }
+            latch.countDown();
+        };
+
+        long begin = System.currentTimeMillis();
+        for (int j = 0; j < 300; j++) {
+            executorService.submit(task);
+        }
+        latch.await();
+        long end = System.currentTimeMillis();
+        System.out.println("time = " + (end - begin));
+    }
+
+    /*
+     * Single thread (100000 ids) and contended (300 threads x 100 ids) throughput of the id generators.
+     */
+    @Test
+    void testIdGenerators() throws InterruptedException {
+        Map<String, IdGenerator> generators = new LinkedHashMap<>();
+        generators.put("redis incr", redisIdWorker);
+        generators.put("redis segment", redisIdWorker::nextIdBySegment);
+        generators.put("snowflake", snowflakeIdWorker);
+
+        for (Map.Entry<String, IdGenerator> entry : generators.entrySet()) {
+            IdGenerator generator = entry.getValue();
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < 100000; i++) {
+                generator.nextId("order");
+            }
+            long end = System.currentTimeMillis();
+            System.out.println(entry.getKey() + " single thread: time = " + (end - begin));
+
+            CountDownLatch latch = new CountDownLatch(300);
+            begin = System.currentTimeMillis();
+            for (int j = 0; j < 300; j++) {
+                executorService.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        generator.nextId("order");
+                    }
+                    latch.countDown();
+                });
+            }
+            latch.await();
+            end = System.currentTimeMillis();
+            System.out.println(entry.getKey() + " 300 threads: time = " + (end - begin));
+        }
+
+        // the ranges of the generators never meet, hmdp.id-worker.type can be switched on a live database
+        long tag = 1L << 62;
+        assertEquals(0, redisIdWorker.nextId("order") & tag);
+        assertEquals(0, redisIdWorker.nextIdBySegment("order") & tag);
+        assertEquals(tag, snowflakeIdWorker.nextId("order") & tag);
+    }
+
     @Test
     void loadShopData() {
         // 1. query shop information from sql
@@ -112,4 +458,260 @@ class HmDianPingApplicationTests extends ServiceImpl<ShopMapper, Shop> implement
 
         System.out.println(count);
     }
+
+    /*
+     * Drain benchmark of stream.orders: push orders straight into the stream and time until all are in MySQL.
+     * Run once with -Dhmdp.seckill.consumer-count=1 -Dhmdp.seckill.batch-size=1 for the old single consumer loop.
+     */
+    @Test
+    void testOrderStreamThroughput() throws InterruptedException {
+        int orders = 20000;
+        Long voucherId = addBenchmarkVoucher(orders, 1);
+
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < orders; i++) {
+            Map<String, String> order = new HashMap<>();
+            order.put("userId", String.valueOf(1_000_000L + i));
+            order.put("voucherId", voucherId.toString());
+            order.put("id", String.valueOf(redisIdWorker.nextId("order")));
+            stringRedisTemplate.opsForStream().add(RedisConstants.STREAM_ORDERS_KEY, order);
+        }
+        while (voucherOrderService.query().eq("voucher_id", voucherId).count() < orders) {
+            Thread.sleep(100);
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("time = " + (end - begin) + ", orders/s = " + orders * 1000L / (end - begin));
+    }
+
+    /*
+     * Order queue backends: enqueue latency from 8 producer threads, then drain throughput with 4 consumers
+     * taking batches of 50 and acknowledging them.
+     */
+    @Test
+    void testOrderQueues() throws Exception {
+        int orders = 100000;
+        Map<String, OrderQueue> queues = new LinkedHashMap<>();
+        stringRedisTemplate.delete("stream.orders.benchmark");
+        queues.put("redis stream", new RedisStreamOrderQueue(stringRedisTemplate, "stream.orders.benchmark", "g1"));
+        queues.put("ring buffer", new RingBufferOrderQueue(orders, dropped -> {
+            throw new IllegalStateException(dropped.size() + " orders overflowed");
+        }));
+        Path journalDir = Files.createTempDirectory("order-journal");
+        queues.put("mmap journal", new JournalOrderQueue(journalDir.toString(), 1 << 20, false));
+
+        for (Map.Entry<String, OrderQueue> entry : queues.entrySet()) {
+            OrderQueue queue = entry.getValue();
+            List<VoucherOrder> voucherOrders = benchmarkOrders(1L, 5_000_000L, orders);
+
+            // 1. enqueue latency
+            long[] latencies = new long[orders];
+            CountDownLatch produced = new CountDownLatch(8);
+            for (int t = 0; t < 8; t++) {
+                int first = t;
+                executorService.submit(() -> {
+                    for (int i = first; i < orders; i += 8) {
+                        long begin = System.nanoTime();
+                        queue.offer(voucherOrders.get(i));
+                        latencies[i] = System.nanoTime() - begin;
+                    }
+                    produced.countDown();
+                });
+            }
+            produced.await();
+            Arrays.sort(latencies);
+            System.out.println(entry.getKey() + " enqueue: p50 = " + latencies[orders / 2] / 1000.0
+                    + " us, p99 = " + latencies[orders * 99 / 100] / 1000.0
+                    + " us, p999 = " + latencies[orders * 999 / 1000] / 1000.0 + " us");
+
+            // 2. drain throughput
+            AtomicInteger drained = new AtomicInteger();
+            CountDownLatch consumed = new CountDownLatch(4);
+            long begin = System.currentTimeMillis();
+            for (int c = 0; c < 4; c++) {
+                String consumerName = "benchmark-" + c;
+                executorService.submit(() -> {
+                    try {
+                        while (drained.get() < orders) {
+                            List<QueuedOrder> batch = queue.take(consumerName, 50, Duration.ofMillis(100));
+                            if (!batch.isEmpty()) {
+                                queue.ack(consumerName, batch);
+                                drained.addAndGet(batch.size());
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    consumed.countDown();
+                });
+            }
+            consumed.await();
+            long end = System.currentTimeMillis();
+            System.out.println(entry.getKey() + " drain: time = " + (end - begin)
+                    + ", orders/s = " + orders * 1000L / Math.max(end - begin, 1));
+            queue.close();
+        }
+        stringRedisTemplate.delete("stream.orders.benchmark");
+    }
+
+    /*
+     * Throughput of seckill.lua against the number of stock buckets, 200 threads x 100 distinct users each,
+     * every call on the bucket of the user as VoucherOrderServiceImpl routes it.
+     */
+    @Test
+    void testShardedStockThroughput() throws InterruptedException {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("seckill.lua"));
+        script.setResultType(Long.class);
+
+        for (int buckets : new int[]{1, 2, 4, 8, 16}) {
+            Long voucherId = addBenchmarkVoucher(20000, buckets);
+            SeckillMeta meta = new SeckillMeta(voucherId, buckets, null, null);
+            CountDownLatch latch = new CountDownLatch(200);
+            long begin = System.currentTimeMillis();
+            for (int t = 0; t < 200; t++) {
+                long firstUser = 2_000_000L + t * 100L;
+                executorService.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        int home = meta.home(firstUser + i);
+                        stringRedisTemplate.execute(script, Arrays.asList(meta.stockKey(home), meta.orderKey(home)),
+                                voucherId.toString(), String.valueOf(firstUser + i),
+                                String.valueOf(redisIdWorker.nextId("order")), "1800", "1", "0", "", "");
+                    }
+                    latch.countDown();
+                });
+            }
+            latch.await();
+            long end = System.currentTimeMillis();
+            System.out.println("buckets = " + buckets + ", time = " + (end - begin) + ", ops/s = " + 20000 * 1000L / (end - begin));
+        }
+    }
+
+    /*
+     * Bundle of 5 vouchers per user: one seckill.lua call per voucher against one seckill_batch.lua call.
+     */
+    @Test
+    void testBatchClaim() {
+        DefaultRedisScript<Long> single = new DefaultRedisScript<>();
+        single.setLocation(new ClassPathResource("seckill.lua"));
+        single.setResultType(Long.class);
+        DefaultRedisScript<List> batch = new DefaultRedisScript<>();
+        batch.setLocation(new ClassPathResource("seckill_batch.lua"));
+        batch.setResultType(List.class);
+        int users = 2000;
+        List<Long> voucherIds = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            voucherIds.add(addBenchmarkVoucher(users, 1));
+        }
+
+        long begin = System.currentTimeMillis();
+        for (int u = 0; u < users; u++) {
+            for (Long voucherId : voucherIds.subList(0, 5)) {
+                SeckillMeta meta = SeckillMeta.single(voucherId);
+                stringRedisTemplate.execute(single, Arrays.asList(meta.stockKey(0), meta.orderKey(0)),
+                        voucherId.toString(), String.valueOf(6_000_000L + u),
+                        String.valueOf(redisIdWorker.nextId("order")), "1800", "1", "0", "", "");
+            }
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("one call per voucher: time = " + (end - begin));
+
+        begin = System.currentTimeMillis();
+        for (int u = 0; u < users; u++) {
+            List<String> keys = new ArrayList<>();
+            List<String> args = new ArrayList<>(Arrays.asList(String.valueOf(6_000_000L + u), "1800", "1", "1", "0"));
+            for (Long voucherId : voucherIds.subList(5, 10)) {
+                SeckillMeta meta = SeckillMeta.single(voucherId);
+                keys.add(meta.stockKey(0));
+                keys.add(meta.orderKey(0));
+                args.addAll(Arrays.asList(voucherId.toString(), String.valueOf(redisIdWorker.nextId("order")), "", ""));
+            }
+            stringRedisTemplate.execute(batch, keys, args.toArray());
+        }
+        end = System.currentTimeMillis();
+        System.out.println("one call per bundle: time = " + (end - begin));
+    }
+
+    /*
+     * Per-order persistence against batch persistence (one stock update and one multi-row insert per batch of 50).
+     */
+    @Test
+    void testBatchPersistence() {
+        int orders = 10000;
+        Long voucherId = addBenchmarkVoucher(orders * 2, 1);
+
+        List<VoucherOrder> perOrder = benchmarkOrders(voucherId, 3_000_000L, orders);
+        long begin = System.currentTimeMillis();
+        for (VoucherOrder voucherOrder : perOrder) {
+            voucherOrderService.CreateVoucherOrder(voucherOrder);
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("per order: time = " + (end - begin) + ", orders/s = " + orders * 1000L / (end - begin));
+
+        List<VoucherOrder> batched = benchmarkOrders(voucherId, 4_000_000L, orders);
+        begin = System.currentTimeMillis();
+        for (int i = 0; i < orders; i += 50) {
+            voucherOrderService.createVoucherOrders(batched.subList(i, Math.min(i + 50, orders)));
+        }
+        end = System.currentTimeMillis();
+        System.out.println("batch: time = " + (end - begin) + ", orders/s = " + orders * 1000L / (end - begin));
+    }
+
+    private List<VoucherOrder> benchmarkOrders(Long voucherId, long firstUser, int count) {
+        List<VoucherOrder> orders = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(redisIdWorker.nextId("order"));
+            voucherOrder.setUserId(firstUser + i);
+            voucherOrder.setVoucherId(voucherId);
+            orders.add(voucherOrder);
+        }
+        return orders;
+    }
+
+    private Long addBenchmarkVoucher(int stock, int buckets) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("benchmark");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(100L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setStockBuckets(buckets);
+        voucher.setBeginTime(LocalDateTime.now());
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /*
+     * No gate and no meters for an id without seckill meta, a gate for a seckill voucher.
+     */
+    @Test
+    void testAdmissionUnknownVoucher() {
+        long unknownId = Long.MAX_VALUE - 1;
+        assertFalse(seckillAdmission.tryAdmit(unknownId));
+        assertNull(seckillAdmission.stats(unknownId));
+        assertNull(meterRegistry.find("seckill.admission.requests").tag("voucher", String.valueOf(unknownId)).counter());
+
+        Long voucherId = addBenchmarkVoucher(10, 1);
+        assertTrue(seckillAdmission.tryAdmit(voucherId));
+        assertNotNull(meterRegistry.find("seckill.admission.requests").tag("voucher", voucherId.toString()).counter());
+    }
+
+    /*
+     * A status only moves forward: a redelivered order marked PERSISTED again keeps PAID or EXPIRED.
+     */
+    @Test
+    void testOrderStatusForwardOnly() {
+        long orderId = 5_000_000L;
+        long userId = 1L;
+        stringRedisTemplate.delete(RedisConstants.ORDER_STATUS_KEY + orderId);
+        seckillOrderStatus.mark(orderId, userId, SeckillOrderStatus.PERSISTED);
+        assertEquals("PERSISTED", seckillOrderStatus.query(orderId, userId));
+        seckillOrderStatus.mark(orderId, userId, SeckillOrderStatus.PAID);
+        seckillOrderStatus.mark(Collections.singletonList(new VoucherOrder().setId(orderId).setUserId(userId)),
+                SeckillOrderStatus.PERSISTED);
+        assertEquals("PAID", seckillOrderStatus.query(orderId, userId));
+        stringRedisTemplate.delete(RedisConstants.ORDER_STATUS_KEY + orderId);
+    }
 }
@@ -0,0 +1,194 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.JournalOrderQueue;
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.QueuedOrder;
+import com.hmdp.utils.RingBufferOrderQueue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Correctness of the local order queues, no redis or mysql needed.
+ */
+class OrderQueueTests {
+
+    private static final int PRODUCERS = 4;
+    private static final int CONSUMERS = 4;
+    private static final int ORDERS_PER_PRODUCER = 50000;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRingBufferConcurrentOfferAndTake() throws Exception {
+        // smaller than the orders, so producers meet a full ring and consumers an empty one
+        assertEveryOrderOnce(new RingBufferOrderQueue(1024, dropped -> {
+            throw new IllegalStateException("overflow");
+        }));
+    }
+
+    @Test
+    void testJournalConcurrentOfferAndTake() throws Exception {
+        // small segments, so segments are created and deleted while producers and consumers run
+        JournalOrderQueue queue = new JournalOrderQueue(tempDir.toString(), 4096, false);
+        assertEveryOrderOnce(queue);
+        queue.close();
+    }
+
+    @Test
+    void testRingBufferRetryOverflow() throws InterruptedException {
+        List<VoucherOrder> overflowed = new ArrayList<>();
+        RingBufferOrderQueue queue = new RingBufferOrderQueue(4, overflowed::addAll);
+        for (long id = 1; id <= 4; id++) {
+            assertTrue(queue.offer(order(id)));
+        }
+        assertFalse(queue.offer(order(5)));
+
+        // two orders taken and handed back, one fits after a new offer fills a freed slot
+        List<QueuedOrder> taken = queue.take("c1", 2, Duration.ofMillis(10));
+        assertEquals(2, taken.size());
+        assertTrue(queue.offer(order(6)));
+        queue.retry("c1", taken);
+
+        assertEquals(4, queue.size());
+        assertEquals(Collections.singletonList(2L), ids(overflowed));
+    }
+
+    @Test
+    void testRingBufferOfferAllOrNone() throws InterruptedException {
+        RingBufferOrderQueue queue = new RingBufferOrderQueue(4, overflowed -> {
+            throw new IllegalStateException("overflow");
+        });
+        assertTrue(queue.offer(order(1)));
+        assertTrue(queue.offer(order(2)));
+        // three do not fit into the two free slots, none of them is taken
+        assertFalse(queue.offerAll(Arrays.asList(order(3), order(4), order(5))));
+        assertEquals(2, queue.size());
+        assertTrue(queue.offerAll(Arrays.asList(order(3), order(4))));
+
+        List<QueuedOrder> taken = queue.take("c1", 4, Duration.ofMillis(10));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L),
+                ids(taken.stream().map(QueuedOrder::getVoucherOrder).collect(Collectors.toList())));
+    }
+
+    @Test
+    void testJournalOfferAll() throws Exception {
+        JournalOrderQueue queue = new JournalOrderQueue(tempDir.toString(), 4, false);
+        assertTrue(queue.offer(order(1)));
+        // the bundle spans two segments
+        assertTrue(queue.offerAll(Arrays.asList(order(2), order(3), order(4), order(5))));
+        assertEquals(5, queue.size());
+        queue.close();
+        assertFalse(queue.offerAll(Collections.singletonList(order(6))));
+
+        JournalOrderQueue restarted = new JournalOrderQueue(tempDir.toString(), 4, false);
+        List<QueuedOrder> replayed = restarted.take("c1", 10, Duration.ofMillis(10));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L),
+                ids(replayed.stream().map(QueuedOrder::getVoucherOrder).collect(Collectors.toList())));
+        restarted.close();
+    }
+
+    @Test
+    void testJournalReplayAfterRestart() throws Exception {
+        JournalOrderQueue queue = new JournalOrderQueue(tempDir.toString(), 4, false);
+        for (long id = 1; id <= 10; id++) {
+            assertTrue(queue.offer(order(id)));
+        }
+        // 1..5 persisted and acknowledged, 6..7 taken but not acknowledged, 8..10 not taken
+        queue.ack("c1", queue.take("c1", 5, Duration.ofMillis(10)));
+        assertEquals(2, queue.take("c1", 2, Duration.ofMillis(10)).size());
+        // the first segment (orders 1..4) is below the checkpoint
+        assertFalse(Files.exists(tempDir.resolve(String.format("%020d.journal", 0))));
+        queue.close();
+
+        // a restart delivers everything after the checkpoint again, in order
+        JournalOrderQueue restarted = new JournalOrderQueue(tempDir.toString(), 4, false);
+        assertEquals(5, restarted.size());
+        List<QueuedOrder> replayed = restarted.take("c1", 10, Duration.ofMillis(10));
+        assertEquals(Arrays.asList(6L, 7L, 8L, 9L, 10L),
+                ids(replayed.stream().map(QueuedOrder::getVoucherOrder).collect(Collectors.toList())));
+        restarted.ack("c1", replayed);
+        restarted.close();
+
+        // all acknowledged, nothing left after another restart
+        JournalOrderQueue again = new JournalOrderQueue(tempDir.toString(), 4, false);
+        assertEquals(0, again.size());
+        again.close();
+    }
+
+    private void assertEveryOrderOnce(OrderQueue queue) throws Exception {
+        int total = PRODUCERS * ORDERS_PER_PRODUCER;
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS + CONSUMERS);
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger consumed = new AtomicInteger();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < PRODUCERS; p++) {
+                long first = (long) p * ORDERS_PER_PRODUCER + 1;
+                futures.add(executor.submit(() -> {
+                    for (long id = first; id < first + ORDERS_PER_PRODUCER; id++) {
+                        // a full queue is retried, as the consumers make room
+                        while (!queue.offer(order(id))) {
+                            Thread.yield();
+                        }
+                    }
+                }));
+            }
+            for (int c = 0; c < CONSUMERS; c++) {
+                String consumerName = "c" + c;
+                futures.add(executor.submit(() -> {
+                    while (consumed.get() < total) {
+                        List<QueuedOrder> orders = queue.take(consumerName, 50, Duration.ofMillis(10));
+                        for (QueuedOrder order : orders) {
+                            if (!seen.add(order.getVoucherOrder().getId())) {
+                                duplicates.incrementAndGet();
+                            }
+                        }
+                        queue.ack(consumerName, orders);
+                        consumed.addAndGet(orders.size());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(total, seen.size());
+        assertEquals(total, consumed.get());
+        assertEquals(0, queue.size());
+    }
+
+    private static VoucherOrder order(long id) {
+        return new VoucherOrder().setId(id).setUserId(1_000_000L + id).setVoucherId(1L);
+    }
+
+    private static List<Long> ids(List<VoucherOrder> voucherOrders) {
+        return voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+    }
+}
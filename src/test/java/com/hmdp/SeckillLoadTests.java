@@ -0,0 +1,243 @@
+package com.hmdp;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillMeta;
+import com.hmdp.utils.SystemConstants;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Flash sale load test of POST /voucher-order/seckill/{id}, end to end through tomcat, redis and mysql.
+ * <p>
+ * Local stand-ins are described in application-loadtest.yaml. Size it by system properties:
+ * -Dload.users=5000 -Dload.stock=1000 -Dload.threads=200 -Dload.buckets=1
+ * Admission control is disabled by the profile, the results are those of the pipeline, not of shedding.
+ * </p>
+ */
+@ActiveProfiles("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class SeckillLoadTests {
+
+    private static final int USERS = Integer.getInteger("load.users", 5000);
+    private static final int STOCK = Integer.getInteger("load.stock", 1000);
+    private static final int THREADS = Integer.getInteger("load.threads", 200);
+    private static final int BUCKETS = Integer.getInteger("load.buckets", 1);
+    // every user sends the request twice, the second one must be rejected as duplicate
+    private static final int REQUESTS_PER_USER = 2;
+    private static final long FIRST_USER_ID = 10_000_000L;
+
+    @LocalServerPort
+    private int port;
+    @Value("${hmdp.seckill.admission.enabled}")
+    private boolean admissionEnabled;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Test
+    void flashSale() throws Exception {
+        // 0. every request must reach seckill.lua, or oversell and latency are those of admission shedding
+        assertFalse(admissionEnabled, "admission control must be disabled by the loadtest profile");
+
+        // 1. provision logged in users and the seckill voucher
+        List<String> tokens = provisionUsers();
+        Long voucherId = addVoucher();
+
+        // 2. fire concurrent requests
+        int requests = USERS * REQUESTS_PER_USER;
+        long[] latencies = new long[requests];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        URL url = new URL("http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        long begin = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            executor.submit(() -> {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests) {
+                        long start = System.nanoTime();
+                        try {
+                            if (seckill(url, tokens.get(i % USERS))) {
+                                succeeded.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - start;
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long end = System.nanoTime();
+        executor.shutdown();
+
+        // 3. wait until the order stream is drained into mysql
+        long drainBegin = System.nanoTime();
+        while (countOrders(voucherId) < succeeded.get() || pendingOrders() > 0) {
+            Thread.sleep(50);
+        }
+        long drainEnd = System.nanoTime();
+
+        // 4. report
+        Arrays.sort(latencies);
+        long elapsedMs = (end - begin) / 1_000_000;
+        System.out.println("requests = " + requests + ", succeeded = " + succeeded.get() + ", errors = " + errors.get());
+        System.out.println("time = " + elapsedMs + " ms, throughput = " + requests * 1000L / Math.max(elapsedMs, 1) + " req/s");
+        System.out.println("latency p50 = " + percentile(latencies, 0.50) + " ms, p99 = " + percentile(latencies, 0.99)
+                + " ms, p999 = " + percentile(latencies, 0.999) + " ms");
+        System.out.println("stream drain time = " + (drainEnd - drainBegin) / 1_000_000 + " ms");
+
+        // 5. oversell and duplicate checks
+        int orders = countOrders(voucherId);
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        assertEquals(0, errors.get(), "http errors");
+        assertTrue(succeeded.get() <= STOCK, "oversold in redis");
+        assertEquals(succeeded.get(), orders, "orders in mysql");
+        assertEquals(STOCK - orders, seckillVoucher.getStock().intValue(), "stock in mysql");
+        assertTrue(redisStock(voucherId) >= 0, "redis stock below zero");
+        assertEquals(0, voucherOrderService.query().select("user_id").eq("voucher_id", voucherId)
+                .groupBy("user_id").having("count(*) > 1").list().size(), "duplicate orders");
+
+        // 6. clean up tokens
+        stringRedisTemplate.delete(tokensKeys(tokens));
+    }
+
+    private List<String> provisionUsers() {
+        List<String> tokens = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            tokens.add(UUID.randomUUID().toString(true));
+        }
+        // tokens in login:token:* as UserServiceImpl.login writes them, pipelined
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < USERS; i++) {
+                String key = RedisConstants.LOGIN_USER_KEY + tokens.get(i);
+                stringConnection.hSet(key, "id", String.valueOf(FIRST_USER_ID + i));
+                stringConnection.hSet(key, "nickName", SystemConstants.USER_NICK_NAME_PREFIX + i);
+                stringConnection.hSet(key, "icon", "");
+                stringConnection.expire(key, 3600);
+            }
+            return null;
+        });
+        return tokens;
+    }
+
+    private List<String> tokensKeys(List<String> tokens) {
+        List<String> keys = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            keys.add(RedisConstants.LOGIN_USER_KEY + token);
+        }
+        return keys;
+    }
+
+    private Long addVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("load test");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(100L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setStockBuckets(BUCKETS);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private boolean seckill(URL url, String token) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty(SystemConstants.HEAD_TOKEN_KEY, token);
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("http " + connection.getResponseCode());
+        }
+        // read the whole body so the keep-alive connection is reused
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[512];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+            JSONObject result = JSONUtil.parseObj(new String(body.toByteArray(), StandardCharsets.UTF_8));
+            return Boolean.TRUE.equals(result.getBool("success"));
+        }
+    }
+
+    private int countOrders(Long voucherId) {
+        return voucherOrderService.query().eq("voucher_id", voucherId).count();
+    }
+
+    private long pendingOrders() {
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                .pending(RedisConstants.STREAM_ORDERS_KEY, RedisConstants.STREAM_ORDERS_GROUP);
+        return summary == null ? 0 : summary.getTotalPendingMessages();
+    }
+
+    private long redisStock(Long voucherId) {
+        // single stock key, or the stock buckets
+        SeckillMeta meta = new SeckillMeta(voucherId, BUCKETS, null, null);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            keys.add(meta.stockKey(i));
+        }
+        long stock = 0;
+        for (String value : stringRedisTemplate.opsForValue().multiGet(keys)) {
+            stock += value == null ? 0 : Long.parseLong(value);
+        }
+        return stock;
+    }
+
+    private static long percentile(long[] sortedNanos, double p) {
+        int index = (int) Math.ceil(p * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(index, 0)] / 1_000_000;
+    }
+}